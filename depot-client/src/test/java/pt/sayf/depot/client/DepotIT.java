@@ -1,6 +1,7 @@
 package pt.sayf.depot.client;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.junit.After;
@@ -9,6 +10,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.protobuf.ByteString;
+
 import pt.sayf.depot.grpc.DepotServiceGrpc;
 import pt.sayf.depot.grpc.Depot;
 
@@ -57,6 +60,21 @@ public class DepotIT {
 
 	}
 
+	@Test
+	public void pingLogMetrics() {
+		stub.join(Depot.joinRequest.newBuilder().setName("A").setLat(1.1F).setLong(-31.2F).build());
+		stub.report(Depot.reportRequest.newBuilder().setSentry("A").addObservations("11:11:11:11:11:11")
+				.addObservations("22:22:22:22:22:22").build());
+		stub.report(Depot.reportRequest.newBuilder().setSentry("A").addObservations("33:33:33:33:33:33").build());
+
+		Depot.ctrlPingReply reply = stub.ctrlPing(Depot.ctrlPingRequest.newBuilder().build());
+
+		assert (reply.getMetricsOrDefault("log.versions", -1) == 2);
+		assert (reply.getMetricsOrDefault("log.observations", -1) == 3);
+		assert (reply.getMetricsOrDefault("log.lowestAcknowledged", -1) == 0); // no peers
+
+	}
+
 	@Test
 	public void registerSentry() {
 		stub.join(Depot.joinRequest.newBuilder().setName("TP").setLat(9.01F).setLong(-31.87F).build());
@@ -307,4 +325,141 @@ public class DepotIT {
 		assert (reply.getObservations(0).getMac().compareTo("EE:EE:EE:EE:EE:EE") == 0);
 		assert (reply.getObservations(1).getMac().compareTo("FF:FF:FE:EE:EE:EE") == 0);
 	}
+
+	@Test
+	public void matchMacMaxTotal() {
+		stub.ctrlInit(Depot.ctrlInitRequest.newBuilder()
+				.addSentries(Depot.sentry.newBuilder().setName("A").setLat(1.1F).setLon(31.9F).build())
+				.addObservations(Depot.observ.newBuilder().setMac("FF:FF:FF:FF:FF:FF").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:00:00").build())
+				.addObservations(Depot.observ.newBuilder().setMac("FF:FF:FF:FF:FF:FF").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:01:00").build())
+				.addObservations(Depot.observ.newBuilder().setMac("FF:FF:FE:EE:EE:EE").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:02:00").build())
+				.build());
+
+		Depot.searchMatchReply reply = stub.searchMatch(Depot.searchMatchRequest.newBuilder().setFragMac("FF:FF:")
+				.setLastBits(false).setMaxResults(-1).setMaxTotal(2).build());
+
+		assert (reply.getObservationsCount() == 2);
+		assert (reply.getObservations(0).getMac().compareTo("FF:FF:FE:EE:EE:EE") == 0);
+		assert (reply.getObservations(1).getMac().compareTo("FF:FF:FF:FF:FF:FF") == 0);
+		assert (reply.getObservations(1).getTimedate().compareTo("2019-11-06T20:01:00") == 0);
+	}
+
+	@Test
+	public void searchStreamTrace() {
+		stub.ctrlInit(Depot.ctrlInitRequest.newBuilder()
+				.addSentries(Depot.sentry.newBuilder().setName("A").setLat(1.1F).setLon(31.9F).build())
+				.addObservations(Depot.observ.newBuilder().setMac("FF:FF:FF:FF:FF:FF").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:00:00").build())
+				.addObservations(Depot.observ.newBuilder().setMac("FF:FF:FF:FF:FF:FF").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:01:00").build())
+				.build());
+
+		Iterator<Depot.searchChunk> chunks = stub
+				.searchStream(Depot.searchRequest.newBuilder().setMac("FF:FF:FF:FF:FF:FF").setMaxResults(-1).build());
+
+		Depot.searchChunk header = chunks.next();
+		assert (header.getObservationsCount() == 0);
+		assert (header.getTimestamp().getReplicasCount() > 0);
+
+		List<Depot.observ> observations = new ArrayList<Depot.observ>();
+		while (chunks.hasNext()) {
+			observations.addAll(chunks.next().getObservationsList());
+		}
+
+		assert (observations.size() == 2);
+		assert (observations.get(0).getTimedate().compareTo("2019-11-06T20:01:00") == 0);
+		assert (observations.get(1).getTimedate().compareTo("2019-11-06T20:00:00") == 0);
+	}
+
+	@Test
+	public void searchMatchPaged() {
+		Depot.ctrlInitRequest.Builder init = Depot.ctrlInitRequest.newBuilder()
+				.addSentries(Depot.sentry.newBuilder().setName("A").setLat(1.1F).setLon(31.9F).build());
+		for (String mac : new String[] { "AA:00:00:00:00:01", "AA:00:00:00:00:02", "AA:00:00:00:00:03" }) {
+			init.addObservations(Depot.observ.newBuilder().setMac(mac).setSentry("A").setLat(1.1F).setLon(31.9F)
+					.setTimedate("2019-11-06T20:00:00").build());
+			init.addObservations(Depot.observ.newBuilder().setMac(mac).setSentry("A").setLat(1.1F).setLon(31.9F)
+					.setTimedate("2019-11-06T20:01:00").build());
+		}
+		stub.ctrlInit(init.build());
+
+		List<Depot.observ> observations = new ArrayList<Depot.observ>();
+		ByteString token = ByteString.EMPTY;
+		int pages = 0;
+		do {
+			Depot.searchMatchReply reply = stub.searchMatch(Depot.searchMatchRequest.newBuilder().setFragMac("AA:")
+					.setMaxResults(-1).setPageSize(4).setPageToken(token).build());
+			assert (reply.getObservationsCount() <= 4);
+			observations.addAll(reply.getObservationsList());
+			token = reply.getNextPageToken();
+			pages++;
+		} while (!token.isEmpty());
+
+		assert (pages == 2);
+		assert (observations.size() == 6);
+		assert (observations.get(2).getMac().compareTo("AA:00:00:00:00:02") == 0);
+		assert (observations.get(2).getTimedate().compareTo("2019-11-06T20:01:00") == 0);
+		assert (observations.get(5).getMac().compareTo("AA:00:00:00:00:03") == 0);
+		assert (observations.get(5).getTimedate().compareTo("2019-11-06T20:00:00") == 0);
+	}
+
+	@Test
+	public void searchMatchPagedKeepsView() {
+		Depot.ctrlInitRequest.Builder init = Depot.ctrlInitRequest.newBuilder()
+				.addSentries(Depot.sentry.newBuilder().setName("A").setLat(1.1F).setLon(31.9F).build());
+		for (String mac : new String[] { "AA:00:00:00:00:01", "AA:00:00:00:00:02", "AA:00:00:00:00:03" }) {
+			init.addObservations(Depot.observ.newBuilder().setMac(mac).setSentry("A").setLat(1.1F).setLon(31.9F)
+					.setTimedate("2019-11-06T20:00:00").build());
+			init.addObservations(Depot.observ.newBuilder().setMac(mac).setSentry("A").setLat(1.1F).setLon(31.9F)
+					.setTimedate("2019-11-06T20:01:00").build());
+		}
+		stub.ctrlInit(init.build());
+
+		Depot.searchMatchReply first = stub.searchMatch(Depot.searchMatchRequest.newBuilder().setFragMac("AA:")
+				.setMaxResults(-1).setPageSize(4).build());
+		// added between the pages, after the position of the first page
+		stub.report(Depot.reportRequest.newBuilder().setSentry("A").addObservations("AA:00:00:00:00:03")
+				.addObservations("AA:00:00:00:00:04").build());
+		Depot.searchMatchReply second = stub.searchMatch(Depot.searchMatchRequest.newBuilder().setFragMac("AA:")
+				.setMaxResults(-1).setPageSize(4).setPageToken(first.getNextPageToken()).build());
+
+		assert (first.getObservationsCount() == 4);
+		assert (second.getObservationsCount() == 2);
+		assert (second.getNextPageToken().isEmpty());
+		assert (second.getTimestamp().equals(first.getTimestamp()));
+		assert (second.getObservations(0).getMac().compareTo("AA:00:00:00:00:03") == 0);
+		assert (second.getObservations(0).getTimedate().compareTo("2019-11-06T20:01:00") == 0);
+		assert (second.getObservations(1).getTimedate().compareTo("2019-11-06T20:00:00") == 0);
+	}
+
+	@Test
+	public void batchSearchGrouped() {
+		stub.ctrlInit(Depot.ctrlInitRequest.newBuilder()
+				.addSentries(Depot.sentry.newBuilder().setName("A").setLat(1.1F).setLon(31.9F).build())
+				.addObservations(Depot.observ.newBuilder().setMac("AA:00:00:00:00:01").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:00:00").build())
+				.addObservations(Depot.observ.newBuilder().setMac("AA:00:00:00:00:01").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:01:00").build())
+				.addObservations(Depot.observ.newBuilder().setMac("BB:00:00:00:00:02").setSentry("A").setLat(1.1F)
+						.setLon(31.9F).setTimedate("2019-11-06T20:02:00").build())
+				.build());
+
+		Depot.batchSearchReply reply = stub.batchSearch(Depot.batchSearchRequest.newBuilder()
+				.addItems(Depot.batchItem.newBuilder().setMac("AA:00:00:00:00:01").setMaxResults(1).build())
+				.addItems(Depot.batchItem.newBuilder().setMac(":00:02").setLastBits(true).setMaxResults(-1).build())
+				.addItems(Depot.batchItem.newBuilder().setMac("CC:").setMaxResults(-1).build())
+				.addItems(Depot.batchItem.newBuilder().setMac("XX:").setMaxResults(-1).build()).build());
+
+		assert (reply.getResultsCount() == 4);
+		assert (reply.getTimestamp().getReplicasCount() > 0);
+		assert (reply.getResults(0).getObservationsCount() == 1);
+		assert (reply.getResults(0).getObservations(0).getTimedate().compareTo("2019-11-06T20:01:00") == 0);
+		assert (reply.getResults(1).getObservationsCount() == 1);
+		assert (reply.getResults(1).getObservations(0).getMac().compareTo("BB:00:00:00:00:02") == 0);
+		assert (reply.getResults(2).getError().compareTo("No observations found.") == 0);
+		assert (reply.getResults(3).getError().compareTo("Invalid MAC address.") == 0);
+	}
 }
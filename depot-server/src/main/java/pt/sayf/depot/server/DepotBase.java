@@ -1,26 +1,67 @@
 package pt.sayf.depot.server;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Collections;
-import java.util.Date;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Collections;
 import java.util.Comparator;
 
 import pt.sayf.depot.server.exceptions.*;
 
 /**
- * Sentry base class with method implementation
+ * Sentry base class with method implementation. Reports are added without a
+ * global lock: versions come from atomic counters, the log and the indexes are
+ * concurrent structures and each MAC history has its own lock, so concurrent
+ * reports only meet when they observe the same MAC. Only updates that depend on
+ * versions this replica has not seen yet go through the pendingUpdates lock.
+ * 
+ * The observations are split in shards by MAC hash. A search for a complete
+ * MAC reads a single shard, searches for fragments and the full listing run on
+ * every shard in parallel and merge the sorted results.
+ * 
+ * Queries read a ReadView: each update takes consecutive arrival numbers for
+ * its observations and, once they are in the shards, the update is published
+ * after every update with lower numbers, together with its change to the
+ * global timestamp. A view therefore never has half of an update and its
+ * timestamp is exactly what the view holds.
+ * 
+ * When the depot has a data directory every change is written to its
+ * WriteAheadLog before being applied, and the call only returns once the
+ * change is on disk. Snapshots of the whole depot are written periodically,
+ * recover loads the latest one and replays the log records after it.
  * 
  * @author DanLopess - Daniel Lopes
  * @version 1.0.0
@@ -31,61 +72,202 @@ public class DepotBase {
 
     private Map<String, float[]> sentries; // sentries --> name, (lat, long)
 
-    private List<Observation> globalObservations; // observations --> (MAC , Time , Sentry , Location)
+    private SentryDictionary sentryDictionary; // sentry id --> name, (lat, long) of observations
 
-    private Map<Integer, List<Observation>> localLog; // contains: version id --> list of observations (added on a given
-    // update)
-    private Map<Integer, List<int[]>> pendingUpdates; // localVersion -> (ReplicaNr , ReplicaVersion)
+    private DepotShard[] shards; // observations --> (MAC , Time , Sentry) split by MAC hash
+    private AtomicLong arrivals = new AtomicLong(); // observations added, orders the full listing
 
-    final int MAXSIZE = 10;
+    private AtomicReference<ReadView> view; // latest published view, read by queries
+    private MerkleTree merkle = new MerkleTree(); // hashes of the observations, compared by anti-entropy
+    private ReentrantReadWriteLock merkleCut = new ReentrantReadWriteLock(); // applied updates share it, reading
+                                                                              // the tree with its view takes it alone
+    private Map<Long, Applied> applied; // first arrival number --> update in the shards but not yet published
 
-    private int[] globalTimestamp;
-    private int[] localTimestamp;
+    private UpdateLog localLog; // contains: version id --> list of observations (added on a given update)
+    private Map<Integer, PendingUpdate> pendingUpdates; // localVersion -> update waiting for versions, guarded by itself
+    private Map<Integer, TreeMap<Integer, List<PendingUpdate>>> waiting; // ReplicaNr -> ReplicaVersion -> updates
+                                                                          // waiting for it, guarded by pendingUpdates
+
+    private Set<Integer> peers; // other replicas, known from the naming server
+    private Map<Integer, Integer> acknowledged; // replica --> highest version of this replica it has seen
+    private int compacted = 0; // log versions up to this one were removed, guarded by pendingUpdates
+    private Map<Integer, UpdateLog> relayLogs; // other replica --> its updates applied here, relayed by gossip
+    private Map<Integer, VectorClock> peerTimestamps; // peer --> global timestamp of its latest gossip request
+
+    // number of shards, -Ddepot.shards overrides the default of one per core
+    static final int DEFAULT_SHARDS = Integer.getInteger("depot.shards",
+            Runtime.getRuntime().availableProcessors());
+
+    private AtomicReference<VectorClock> globalTimestamp; // replica --> version of the updates applied
+    private AtomicReference<VectorClock> localTimestamp; // replica --> version of the updates logged
 
     private int replica;
 
-    private int globalVersion = 1;
-    private int logVersion = 1;
+    private WriteAheadLog wal; // null when the depot only lives in memory
+    private File dataDirectory; // log and snapshots, null when the depot only lives in memory
+    private long snapshotSequence = 0; // last log record in the latest snapshot
+    private Object snapshotFiles = new Object(); // a snapshot is published or the depot cleared at a time
+    private int generation = 0; // clears of the depot, guarded by snapshotFiles
+    private Object reportOrder = new Object(); // reports take their version and append their record with it
+    private ReentrantReadWriteLock checkpoint = new ReentrantReadWriteLock(); // logged updates share it, a
+                                                                               // snapshot cut takes it alone
+
+    // seconds between snapshots, -Ddepot.snapshot.interval overrides it, 0 disables them
+    static final long SNAPSHOT_INTERVAL = Long.getLong("depot.snapshot.interval", 300);
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    // write-ahead log record types
+    private static final byte RECORD_SENTRY = 1;
+    private static final byte RECORD_REPORT = 2;
+    private static final byte RECORD_OBSERVATIONS = 3;
+    private static final byte RECORD_CLEAR = 4;
+
+    private AtomicInteger globalVersion = new AtomicInteger(1);
+    private AtomicInteger logVersion = new AtomicInteger(1);
+    private AtomicInteger logWritten = new AtomicInteger(1); // every version up to it is in the log
 
     // Constructor
     /**
-     * Empty Sentry constructor, receives no arguments and starts the depot empty
+     * Empty Sentry constructor, starts the depot empty with DEFAULT_SHARDS shards
      */
     protected DepotBase(int replicaNumber) {
-        sentries = new HashMap<String, float[]>();
+        this(replicaNumber, DEFAULT_SHARDS);
+    }
 
-        globalObservations = Collections.synchronizedList(new ArrayList<Observation>());
-        localLog = new HashMap<Integer, List<Observation>>();
-        pendingUpdates = new TreeMap<Integer, List<int[]>>();
+    /**
+     * Empty Sentry constructor, starts the depot empty
+     * 
+     * @param replicaNumber
+     * @param shardCount    number of shards the observations are split into
+     */
+    protected DepotBase(int replicaNumber, int shardCount) {
+        sentries = new ConcurrentHashMap<String, float[]>();
+        sentryDictionary = new SentryDictionary();
+
+        shards = new DepotShard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new DepotShard();
+        }
+        localLog = new UpdateLog();
+        pendingUpdates = new TreeMap<Integer, PendingUpdate>();
+        waiting = new HashMap<Integer, TreeMap<Integer, List<PendingUpdate>>>();
 
-        globalTimestamp = new int[MAXSIZE];
-        localTimestamp = new int[MAXSIZE];
+        peers = new CopyOnWriteArraySet<Integer>();
+        acknowledged = new ConcurrentHashMap<Integer, Integer>();
+        relayLogs = new ConcurrentHashMap<Integer, UpdateLog>();
+        peerTimestamps = new ConcurrentHashMap<Integer, VectorClock>();
 
         replica = replicaNumber;
 
-        localTimestamp[replica - 1] = logVersion;
-        globalTimestamp[replica - 1] = globalVersion;
+        localTimestamp = new AtomicReference<VectorClock>(VectorClock.EMPTY.with(replica, logVersion.get()));
+        globalTimestamp = new AtomicReference<VectorClock>(VectorClock.EMPTY.with(replica, globalVersion.get()));
+
+        applied = new ConcurrentHashMap<Long, Applied>();
+        view = new AtomicReference<ReadView>(new ReadView(0, getWriterTimestamp()));
+    }
 
+    /**
+     * Rebuilds the depot from the latest snapshot and the write-ahead log of a
+     * data directory, logs every later change there and starts writing periodic
+     * snapshots. Called before the depot receives requests.
+     * 
+     * @param directory data directory of this replica
+     * @throws IOException if the snapshot or the log can not be read
+     */
+    protected void recover(File directory) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(directory);
+
+        snapshotSequence = loadSnapshot(directory);
+        log.replay(snapshotSequence, new WriteAheadLog.Reader() {
+            @Override
+            public void read(byte type, ByteBuffer payload) throws IOException {
+                replay(type, new DataInputStream(
+                        new ByteArrayInputStream(payload.array(), payload.position(), payload.remaining())));
+            }
+        });
+        wal = log;
+        dataDirectory = directory;
+
+        if (SNAPSHOT_INTERVAL > 0) {
+            Thread snapshots = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(SNAPSHOT_INTERVAL * 1000);
+                            try {
+                                snapshot();
+                            } catch (IOException e) {
+                                System.out.println("Failed to write snapshot: " + e.getMessage());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.yield();
+                    }
+                }
+            }, "depot-snapshot");
+            snapshots.setDaemon(true);
+            snapshots.start();
+        }
     }
 
     /**
-     * Method for restarting server from zero
+     * Method for restarting server from zero, only used by the control
+     * operations so it is not atomic with the updates, unless the depot is
+     * logging, where it waits for the updates and snapshots in progress
+     * 
+     * @throws IOException if the change can not be logged
      */
-    protected void clearServer() {
-        sentries = new HashMap<String, float[]>();
+    protected void clearServer() throws IOException {
+        if (wal == null) {
+            clear();
+            return;
+        }
+        checkpoint.writeLock().lock();
+        try {
+            synchronized (snapshotFiles) { // a snapshot being written is of the depot before the clear
+                log(RECORD_CLEAR, new ByteArrayOutputStream());
+                generation++;
+                clear();
+            }
+        } finally {
+            checkpoint.writeLock().unlock();
+        }
+    }
 
-        globalObservations = Collections.synchronizedList(new ArrayList<Observation>());
-        localLog = new HashMap<Integer, List<Observation>>();
-        pendingUpdates = new HashMap<Integer, List<int[]>>();
+    private void clear() {
+        sentries.clear();
+        sentryDictionary = new SentryDictionary();
 
-        globalTimestamp = new int[MAXSIZE];
-        localTimestamp = new int[MAXSIZE];
+        for (DepotShard shard : shards) {
+            shard.clear();
+        }
+        merkle.clear();
+        localLog.clear();
+        synchronized (pendingUpdates) {
+            pendingUpdates.clear();
+            waiting.clear();
+            compacted = 0;
+        }
+        acknowledged.clear();
+        relayLogs.clear();
+        peerTimestamps.clear();
 
-        globalVersion = 1;
-        logVersion = 1;
+        globalVersion.set(1);
+        logVersion.set(1);
+        logWritten.set(1);
 
-        localTimestamp[replica - 1] = logVersion;
-        globalTimestamp[replica - 1] = globalVersion;
+        localTimestamp.set(VectorClock.EMPTY.with(replica, logVersion.get()));
+        globalTimestamp.set(VectorClock.EMPTY.with(replica, globalVersion.get()));
+
+        for (Applied update : applied.values()) { // nobody publishes them any more
+            update.published.countDown();
+        }
+        applied.clear();
+        arrivals.set(0);
+        view.set(new ReadView(0, getWriterTimestamp()));
     }
 
     // Getters
@@ -95,12 +277,7 @@ public class DepotBase {
      * @return Sentry name's correspondent float[] location i.e. "lat, long"
      */
     protected float[] getSentryLoc(String sentryName) {
-        float[] coords;
-
-        synchronized (sentries) {
-            coords = sentries.get(sentryName);
-        }
-        return coords;
+        return sentries.get(sentryName);
     }
 
     /**
@@ -108,10 +285,7 @@ public class DepotBase {
      * @return Sentry name's correspondent location i.e. "lat, long"
      */
     protected String getSentryLocToString(String sentryName) {
-        float[] coords;
-        synchronized (sentries) {
-            coords = sentries.get(sentryName);
-        }
+        float[] coords = sentries.get(sentryName);
         return Float.toString(coords[0]) + "," + Float.toString(coords[1]);
     }
 
@@ -121,64 +295,285 @@ public class DepotBase {
     protected ArrayList<String> getSentryList() {
         ArrayList<String> sentryNames = new ArrayList<String>();
 
-        synchronized (sentries) {
-            for (String name : sentries.keySet()) {
-                String str = name + ',' + getSentryLocToString(name);
-                sentryNames.add(str);
-            }
+        for (String name : sentries.keySet()) {
+            String str = name + ',' + getSentryLocToString(name);
+            sentryNames.add(str);
         }
 
         return sentryNames;
     }
 
     /**
-     * @param lastbit - boolean that tells the function whether the fragmac is in
-     *                the beggining or end
-     * @param fragMac
-     * @return MAC address
+     * @param lastbit    - boolean that tells the function whether the fragmac is
+     *                   in the beggining or end
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @param maxResults most recent observations per MAC, 0 or negative for all
+     * @param maxTotal   most recent observations overall, 0 or negative for all
+     * @param view       observations the query can see
+     * @return List<Observation> of the matching MACs, sorted by MAC address and
+     *         most recent first
+     */
+    protected List<Observation> getObservationByMac(final long fragMac, final int fragLength, final boolean lastBits,
+            final int maxResults, final int maxTotal, final ReadView view) {
+        // the maxTotal most recent of the depot are among the maxTotal most recent of each shard
+        List<Observation> resultObservations = mergeByMac(forEachShard(new ShardTask<List<Observation>>() {
+            @Override
+            public List<Observation> run(DepotShard shard) {
+                return selectNewest(shard.getMatchingHistories(fragMac, fragLength, lastBits), maxResults,
+                        maxTotal, view);
+            }
+        }));
+        return retainNewest(resultObservations, maxTotal);
+    }
+
+    /**
+     * @param lastbit    - boolean that tells the function whether the fragmac is
+     *                   in the beggining or end
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @return sorted list of the known MACs that match the fragment
+     */
+    protected List<Long> getMatchingMacs(final long fragMac, final int fragLength, final boolean lastBits) {
+        List<List<Long>> macs = forEachShard(new ShardTask<List<Long>>() {
+            @Override
+            public List<Long> run(DepotShard shard) {
+                return shard.getMatchingMacs(fragMac, fragLength, lastBits);
+            }
+        });
+        return merge(macs, new Comparator<Long>() {
+            @Override
+            public int compare(Long one, Long two) {
+                return Long.compare(one, two);
+            }
+        });
+    }
+
+    /**
+     * Reads part of the observations of a MAC, see ObservationCursor
+     * 
+     * @param mac        48-bit MAC address
+     * @param beforeTime only observations with a time up to beforeTime are
+     *                   returned
+     * @param skip       number of observations with time equal to beforeTime
+     *                   that were already read
+     * @param max        maximum number of observations to return
+     * @param view       observations the query can see
+     * @return List<Observation> most recent first
+     */
+    protected List<Observation> getObservationsByMac(long mac, long beforeTime, int skip, int max, ReadView view) {
+        ObservationHistory history = shardOf(mac).getHistory(mac);
+
+        if (history == null) {
+            return new ArrayList<Observation>();
+        }
+        return history.getNewestFirst(beforeTime, skip, max, view);
+    }
+
+    /**
+     * @param mac        48-bit MAC address
+     * @param maxResults most recent observations to return, 0 or negative for all
+     * @param view       observations the query can see
+     * @return List<Observation> with the observations of the given MAC, most
+     *         recent first
+     */
+    protected List<Observation> getObservationsByMac(long mac, int maxResults, ReadView view) {
+        ObservationHistory history = shardOf(mac).getHistory(mac);
+
+        if (history == null) {
+            return new ArrayList<Observation>();
+        }
+        return history.getNewestFirst(maxResults, view);
+    }
+
+    /**
+     * @param mac  48-bit MAC address
+     * @param view observations the query can see
+     * @return most recent observation of the given MAC or null if it was never
+     *         observed
+     */
+    protected Observation getLatestObservation(long mac, ReadView view) {
+        return shardOf(mac).getLatest(mac, view);
+    }
+
+    /**
+     * @param lastbit    - boolean that tells the function whether the fragmac is
+     *                   in the beggining or end
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @param maxTotal   most recent observations overall, 0 or negative for all
+     * @param view       observations the query can see
+     * @return List<Observation> with the most recent observation of each matching
+     *         MAC, sorted by MAC address
+     */
+    protected List<Observation> getLatestObservationByMac(final long fragMac, final int fragLength,
+            final boolean lastBits, int maxTotal, final ReadView view) {
+        List<Observation> resultObservations = mergeByMac(forEachShard(new ShardTask<List<Observation>>() {
+            @Override
+            public List<Observation> run(DepotShard shard) {
+                return shard.getLatestByMac(fragMac, fragLength, lastBits, view);
+            }
+        }));
+        return retainNewest(resultObservations, maxTotal);
+    }
+
+    /**
+     * Removes all but the maxTotal most recent observations, keeping the order of
+     * the others
+     * 
+     * @param resultObservations observations to filter
+     * @param maxTotal           observations to keep, 0 or negative for all
+     * @return resultObservations
+     */
+    private List<Observation> retainNewest(List<Observation> resultObservations, int maxTotal) {
+        if (maxTotal > 0 && maxTotal < resultObservations.size()) {
+            // keep the maxTotal most recent in a bounded heap, oldest on top
+            PriorityQueue<Observation> heap = new PriorityQueue<Observation>(maxTotal, new Comparator<Observation>() {
+                @Override
+                public int compare(Observation observOne, Observation observTwo) {
+                    return Long.compare(observOne.getTimeDate(), observTwo.getTimeDate());
+                }
+            });
+            for (Observation obs : resultObservations) {
+                heap.add(obs);
+                if (heap.size() > maxTotal) {
+                    heap.poll();
+                }
+            }
+            resultObservations.retainAll(new HashSet<Observation>(heap));
+        }
+        return resultObservations;
+    }
+
+    /**
+     * Runs every query of a batch on the same view, so all the results
+     * correspond to the view's timestamp
+     *
+     * @param queries MACs and fragments to search
+     * @param view    observations the queries can see
+     * @return List with the observations of each query, in the order of queries
+     */
+    protected List<List<Observation>> searchBatch(List<SearchQuery> queries, ReadView view) {
+        List<List<Observation>> results = new ArrayList<List<Observation>>(queries.size());
+
+        for (SearchQuery query : queries) {
+            results.add(search(query, view));
+        }
+        return results;
+    }
+
+    /**
+     * @param query MAC or fragment with its limits
+     * @param view  observations the query can see
+     * @return List<Observation> sorted by MAC address and most recent first
+     */
+    private List<Observation> search(SearchQuery query, ReadView view) {
+        int maxResults = query.getMaxResults();
+        int maxTotal = query.getMaxTotal();
+
+        if (query.isCompleteMac()) {
+            // a single MAC, so the global limit is also a limit per MAC
+            if (maxTotal > 0 && (maxResults <= 0 || maxTotal < maxResults)) {
+                maxResults = maxTotal;
+            }
+            if (maxResults == 1) {
+                List<Observation> result = new ArrayList<Observation>();
+                Observation latest = getLatestObservation(query.getMac(), view);
+                if (latest != null) {
+                    result.add(latest);
+                }
+                return result;
+            }
+            return getObservationsByMac(query.getMac(), maxResults, view);
+        }
+
+        if (maxResults == 1) {
+            return getLatestObservationByMac(query.getMac(), query.getFragLength(), query.getLastBits(), maxTotal,
+                    view);
+        }
+        return getObservationByMac(query.getMac(), query.getFragLength(), query.getLastBits(), maxResults, maxTotal,
+                view);
+    }
+
+    /**
+     * Selects the most recent observations of a group of histories. Each history
+     * is already ordered by time, so only its first maxResults observations are
+     * looked at and the maxTotal most recent ones are picked with a heap holding
+     * the next candidate of each history.
+     * 
+     * @param candidates histories sorted by MAC address
+     * @param maxResults most recent observations per MAC, 0 or negative for all
+     * @param maxTotal   most recent observations overall, 0 or negative for all
+     * @param view       observations the query can see
+     * @return List<Observation> sorted by MAC address and most recent first
      */
-    protected List<Observation> getObservationByMac(String fragMac, boolean lastBits) {
+    private List<Observation> selectNewest(List<ObservationHistory> candidates, int maxResults, int maxTotal,
+            ReadView view) {
+        // a history never gives more than maxTotal, and the copies are not changed by new reports
+        int limit = (maxTotal > 0 && (maxResults <= 0 || maxTotal < maxResults)) ? maxTotal : maxResults;
+        final List<List<Observation>> histories = new ArrayList<List<Observation>>(candidates.size());
+        for (ObservationHistory history : candidates) {
+            histories.add(history.getNewestFirst(limit, view));
+        }
+
+        final int[] taken = new int[histories.size()]; // observations taken from each history
+        int[] limits = new int[histories.size()];
         List<Observation> resultObservations = new ArrayList<Observation>();
 
-        synchronized (globalObservations) {
-            if (lastBits) {
-                for (int i = 0; i < globalObservations.size(); i++) {
-                    if (globalObservations.get(i).getMacAddress().substring(17 - fragMac.length(), 17)
-                            .equals(fragMac)) {
-                        resultObservations.add(globalObservations.get(i));
-                    }
+        for (int i = 0; i < histories.size(); i++) {
+            limits[i] = histories.get(i).size();
+        }
+
+        if (maxTotal <= 0) {
+            System.arraycopy(limits, 0, taken, 0, limits.length);
+        } else {
+            PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, histories.size()),
+                    new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer one, Integer two) { // most recent candidate first
+                            return Long.compare(histories.get(two).get(taken[two]).getTimeDate(),
+                                    histories.get(one).get(taken[one]).getTimeDate());
+                        }
+                    });
+            for (int i = 0; i < histories.size(); i++) {
+                if (limits[i] > 0) {
+                    heap.add(i);
                 }
-            } else {
-                for (int i = 0; i < globalObservations.size(); i++) {
-                    if (globalObservations.get(i).getMacAddress().substring(0, fragMac.length()).equals(fragMac)) {
-                        resultObservations.add(globalObservations.get(i));
-                    }
+            }
+            for (int total = 0; total < maxTotal && !heap.isEmpty(); total++) {
+                int i = heap.poll();
+                taken[i]++;
+                if (taken[i] < limits[i]) {
+                    heap.add(i);
                 }
             }
         }
+
+        // the selected observations are the first taken[i] of each history
+        for (int i = 0; i < histories.size(); i++) {
+            for (int j = 0; j < taken[i]; j++) {
+                resultObservations.add(histories.get(i).get(j));
+            }
+        }
         return resultObservations;
     }
 
     /**
-     * Method for sorting a given observation list
+     * Method for sorting a given observation list by MAC address and then from
+     * the most recent to the oldest
      */
-    @SuppressWarnings("unchecked")
-	protected List<Observation> sortObservationList(List<Observation> observations) {
+    protected List<Observation> sortObservationList(List<Observation> observations) {
         List<Observation> sortedObservations = observations;
-		// Sort by Time (older to most recent)
-		Collections.sort(sortedObservations, new Comparator() {
-			@Override
-			public int compare(Object observOne, Object observTwo) {
-				return ((Observation) observOne).getTimeDateToString().compareTo(((Observation) observTwo).getTimeDateToString());
-			}
-		});
-		Collections.reverse(sortedObservations); // most recent to older
-		// Sort by MAC address
-		Collections.sort(sortedObservations, new Comparator() {
-			@Override
-			public int compare(Object observOne, Object observTwo) {
-				return ((Observation) observOne).getMacAddress().compareTo(((Observation) observTwo).getMacAddress());
-			}
+
+        Collections.sort(sortedObservations, new Comparator<Observation>() {
+            @Override
+            public int compare(Observation observOne, Observation observTwo) {
+                int cmp = Long.compare(observOne.getMacAddress(), observTwo.getMacAddress());
+                if (cmp == 0) {
+                    cmp = Long.compare(observTwo.getTimeDate(), observOne.getTimeDate()); // most recent first
+                }
+                return cmp;
+            }
         });
         return sortedObservations;
     }
@@ -191,32 +586,130 @@ public class DepotBase {
     }
 
     /**
-     * @return MAXSIZE
+     * @return Sentry dictionary used by the observations
      */
-    protected int getMAXSIZE() {
-        return MAXSIZE;
+    protected SentryDictionary getSentryDictionary() {
+        return sentryDictionary;
     }
 
     /**
-     * @return Current observations list e.g. MAC,Sentry,Location,Time
+     * @param view observations to list
+     * @return copy of the observations list, in insertion order
      */
-    protected ArrayList<String> getObservationsToString() {
-        ArrayList<String> observ = new ArrayList<String>();
+    protected List<Observation> getObservationsCopy(final ReadView view) {
+        List<List<DepotShard.Arrival>> arrivals = forEachShard(new ShardTask<List<DepotShard.Arrival>>() {
+            @Override
+            public List<DepotShard.Arrival> run(DepotShard shard) {
+                return shard.getArrivals(view);
+            }
+        });
+        List<Observation> observations = new ArrayList<Observation>();
 
-        synchronized (globalObservations) {
-            for (Observation temp : globalObservations) {
-                observ.add(temp.prettyPrint());
+        for (DepotShard.Arrival arrival : merge(arrivals, new Comparator<DepotShard.Arrival>() {
+            @Override
+            public int compare(DepotShard.Arrival one, DepotShard.Arrival two) {
+                return Long.compare(one.number, two.number);
             }
+        })) {
+            observations.add(arrival.observation);
+        }
+        return observations;
+    }
+
+    /**
+     * @param mac 48-bit MAC address
+     * @return shard that holds the observations of mac
+     */
+    private DepotShard shardOf(long mac) {
+        long hash = mac * 0x9E3779B97F4A7C15L; // spreads MACs of the same vendor
+        return shards[(int) ((hash >>> 32) % shards.length)];
+    }
+
+    /**
+     * Task run on every shard of a query
+     */
+    private interface ShardTask<T> {
+        T run(DepotShard shard);
+    }
+
+    /**
+     * Runs a task on every shard in parallel, the calling thread runs the last
+     * shard itself
+     * 
+     * @param task
+     * @return List with the result of each shard
+     */
+    private <T> List<T> forEachShard(final ShardTask<T> task) {
+        List<ForkJoinTask<T>> forks = new ArrayList<ForkJoinTask<T>>(shards.length);
+        List<T> results = new ArrayList<T>(shards.length);
+
+        for (int i = 0; i < shards.length - 1; i++) {
+            final DepotShard shard = shards[i];
+            forks.add(ForkJoinPool.commonPool().submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return task.run(shard);
+                }
+            }));
+        }
+        T last = task.run(shards[shards.length - 1]);
+
+        for (ForkJoinTask<T> fork : forks) {
+            results.add(fork.join());
         }
+        results.add(last);
+        return results;
+    }
 
-        return observ;
+    /**
+     * @param lists observations of each shard, sorted by MAC address
+     * @return List<Observation> sorted by MAC address, each MAC keeps its order
+     */
+    private List<Observation> mergeByMac(List<List<Observation>> lists) {
+        return merge(lists, new Comparator<Observation>() {
+            @Override
+            public int compare(Observation observOne, Observation observTwo) {
+                return Long.compare(observOne.getMacAddress(), observTwo.getMacAddress());
+            }
+        });
     }
 
     /**
-     * @return observations list
+     * Merges sorted lists with a heap holding the next element of each list
+     * 
+     * @param lists      lists sorted by comparator
+     * @param comparator
+     * @return List sorted by comparator, equal elements keep their order
      */
-    protected List<Observation> getObservations() {
-        return globalObservations;
+    private <T> List<T> merge(final List<List<T>> lists, final Comparator<? super T> comparator) {
+        final int[] positions = new int[lists.size()];
+        int total = 0;
+
+        for (List<T> list : lists) {
+            total += list.size();
+        }
+        List<T> result = new ArrayList<T>(total);
+
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, lists.size()), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer one, Integer two) {
+                int cmp = comparator.compare(lists.get(one).get(positions[one]), lists.get(two).get(positions[two]));
+                return cmp != 0 ? cmp : Integer.compare(one, two);
+            }
+        });
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heap.add(i);
+            }
+        }
+        while (!heap.isEmpty()) {
+            int i = heap.poll();
+            result.add(lists.get(i).get(positions[i]++));
+            if (positions[i] < lists.get(i).size()) {
+                heap.add(i);
+            }
+        }
+        return result;
     }
 
     /**
@@ -229,76 +722,232 @@ public class DepotBase {
     /**
      * @return local timestamp vector
      */
-    protected int[] getLocalTimestamp() {
-        return localTimestamp;
+    protected VectorClock getLocalTimestamp() {
+        return localTimestamp.get();
     }
 
     /**
-     * @return global timestamp vector
+     * @return view with the updates published so far, queries should read a
+     *         single view and reply with its timestamp
      */
-    protected int[] getGlobalTimestamp() {
-        return globalTimestamp;
+    protected ReadView getReadView() {
+        return view.get();
     }
 
-    protected Collection<Integer> getGlobalTimestampAsCollection() {
-        Collection<Integer> res = new ArrayList<Integer>();
-        for (int i = 0; i < MAXSIZE; i++) {
-            res.add(globalTimestamp[i]);
-        }
-        return res;
+    /**
+     * @return global timestamp vector of the published view
+     */
+    protected VectorClock getGlobalTimestamp() {
+        return view.get().getTimestamp();
+    }
+
+    /**
+     * @return global timestamp of the updates applied so far, some of them may
+     *         not be published yet
+     */
+    private VectorClock getWriterTimestamp() {
+        return globalTimestamp.get();
     }
 
     /**
      * @return depot log version number
      */
     protected int getLogVersion() {
-        return logVersion;
+        return logVersion.get();
     }
 
     /**
-     * @return depot global version number
+     * @return depot global version number of the published view
      */
     protected int getGlobalVersion() {
-        return globalVersion;
+        return view.get().getTimestamp(replica);
+    }
+
+    /**
+     * Versions are numbered before their updates are in the log, so the
+     * published view can be ahead of an update that is still being logged
+     *
+     * @return last version gossip can send: published, and every version up
+     *         to it is in the log or was compacted
+     */
+    protected int getGossipVersion() {
+        return Math.min(getGlobalVersion(), logWritten.get());
     }
 
     /**
      * @param ver log version
-     * @return List<Observation> with local updates
+     * @return List<Observation> with local updates, null if the version was
+     *         compacted
      */
     protected List<Observation> getObsFromLogVersion(int ver) {
         return localLog.get(ver);
     }
 
     /**
-     * Validation method for mac addresses
-     * 
-     * @param MAC
-     * @return boolean
+     * @param from first log version
+     * @param to   last log version
+     * @return local updates of the range still in the log, in version order,
+     *         up to the first missing version that was not compacted
+     */
+    protected List<UpdateLog.Entry> getLogRange(int from, int to) {
+        return localLog.range(from, to);
+    }
+
+    /**
+     * @param from first log version
+     * @param to   last log version
+     * @return last version a reply with getLogRange(from, to) has, see
+     *         UpdateLog.lastContiguous
+     */
+    protected int getLastContiguous(int from, int to) {
+        return localLog.lastContiguous(from, to);
+    }
+
+    /**
+     * @return log versions up to this one may have been removed, a peer that
+     *         had not seen them gets their observations by anti-entropy
+     */
+    protected int getCompacted() {
+        synchronized (pendingUpdates) {
+            return compacted;
+        }
+    }
+
+    /**
+     * @return lowest version of this replica acknowledged by every known peer,
+     *         0 while there are no peers
+     */
+    protected int getLowestAcknowledged() {
+        int lowest = Integer.MAX_VALUE;
+
+        for (int peer : peers) {
+            Integer version = acknowledged.get(peer);
+            lowest = Math.min(lowest, version == null ? 0 : version);
+        }
+        return lowest == Integer.MAX_VALUE ? 0 : lowest;
+    }
+
+    /**
+     * @return hash of every MAC range of the merkle tree, with the timestamp
+     *         of the observations they cover
+     */
+    protected MerkleTree.Cut<long[]> getMerkleRanges() {
+        merkleCut.writeLock().lock(); // no update is half applied
+        try {
+            return new MerkleTree.Cut<long[]>(view.get().getTimestamp(), merkle.getRangeHashes());
+        } finally {
+            merkleCut.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param ranges MAC ranges
+     * @return range --> time bucket --> hash of the leaves of the ranges, with
+     *         the timestamp of the observations they cover
+     */
+    protected MerkleTree.Cut<Map<Integer, Map<Long, Long>>> getMerkleLeaves(Collection<Integer> ranges) {
+        Map<Integer, Map<Long, Long>> leaves = new TreeMap<Integer, Map<Long, Long>>();
+
+        merkleCut.writeLock().lock();
+        try {
+            for (int range : ranges) {
+                leaves.put(range, merkle.getLeafHashes(range));
+            }
+            return new MerkleTree.Cut<Map<Integer, Map<Long, Long>>>(view.get().getTimestamp(), leaves);
+        } finally {
+            merkleCut.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the observations of the leaves from the shards, by the MACs of each
+     * range and the time of each bucket, without stopping the updates: only the
+     * observations of the given view are returned.
+     *
+     * @param leaves  range --> time buckets of the leaves
+     * @param current published view every leaf is read from
+     * @return observations of the leaves, with their timestamp
+     */
+    protected MerkleTree.Cut<List<Observation>> getMerkleObservations(Map<Integer, Set<Long>> leaves,
+            ReadView current) {
+        List<Observation> observations = new ArrayList<Observation>();
+
+        for (Map.Entry<Integer, Set<Long>> entry : leaves.entrySet()) {
+            int range = entry.getKey(); // the first hex digits of its MACs
+            for (DepotShard shard : shards) {
+                for (ObservationHistory history : shard.getMatchingHistories(range, MerkleTree.RANGE_DIGITS, false)) {
+                    for (long bucket : entry.getValue()) {
+                        observations.addAll(history.getBetween(MerkleTree.bucketStart(bucket),
+                                MerkleTree.bucketStart(bucket + 1) - 1, current));
+                    }
+                }
+            }
+        }
+        return new MerkleTree.Cut<List<Observation>>(current.getTimestamp(), observations);
+    }
+
+    /**
+     * @return metrics of the depot by name, e.g. for ctrlPing
      */
-    protected boolean isMAC(String MAC) {
-        Pattern pattern = Pattern
-                .compile("^(?=(:|.*:$|.{17}$))(?=.{3,17}$)(?!.{4}$):?[0-9a-fA-F]{2}(:[0-9a-fA-F]{2})*:?$");
-        Matcher matcher = pattern.matcher(MAC);
-        return matcher.matches();
+    protected Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<String, Long>();
+        metrics.put("log.versions", (long) localLog.size());
+        metrics.put("log.observations", localLog.getObservationCount());
+        metrics.put("log.lowestAcknowledged", (long) getLowestAcknowledged());
+        long relayed = 0;
+        for (UpdateLog log : relayLogs.values()) {
+            relayed += log.size();
+        }
+        metrics.put("relay.versions", relayed);
+
+        long now = System.currentTimeMillis();
+        for (int peer : peers) { // versions of this replica the peer has not acknowledged, and the age of the
+                                 // oldest one
+            Integer version = acknowledged.get(peer);
+            int seen = Math.max(version == null ? 0 : version, 1);
+            UpdateLog.Entry oldest = localLog.getEntry(seen + 1);
+            metrics.put("replication.lag." + peer + ".versions", (long) Math.max(0, globalVersion.get() - seen));
+            metrics.put("replication.lag." + peer + ".ms", oldest == null ? 0 : now - oldest.getAdded());
+        }
+        synchronized (pendingUpdates) {
+            metrics.put("pending.updates", (long) pendingUpdates.size());
+        }
+        return metrics;
     }
 
     // Setters or Modifiers
 
     /**
      * Function for incrementing the local version number
+     * 
+     * @return the new version, unique to the calling update
      */
-    protected void increaseLocalVersion() {
-        logVersion++;
-        localTimestamp[replica - 1] = logVersion;
+    protected int increaseLocalVersion() {
+        int version = logVersion.incrementAndGet();
+        advance(localTimestamp, replica, version);
+        return version;
     }
 
     /**
      * Function for incrementing the global version number
      */
     protected void increaseGlobalVersion() {
-        globalVersion++;
-        globalTimestamp[replica - 1] = globalVersion;
+        advance(globalTimestamp, replica, globalVersion.incrementAndGet());
+    }
+
+    /**
+     * Concurrent updates can finish out of order, so a version of a timestamp
+     * only moves forward
+     * 
+     * @param timestamp timestamp vector
+     * @param replicaNr replica to update
+     * @param val       new version
+     */
+    private void advance(AtomicReference<VectorClock> timestamp, int replicaNr, int val) {
+        VectorClock current = timestamp.get();
+        while (current.get(replicaNr) < val && !timestamp.compareAndSet(current, current.with(replicaNr, val))) {
+            current = timestamp.get();
+        }
     }
 
     /**
@@ -306,170 +955,582 @@ public class DepotBase {
      * @param lat        sentry's latitude in a float variable
      * @param lon        sentry's longitude in a float variable
      */
-    protected void addSentry(String sentryName, float lat, float lon) throws SentryNameException {
-        synchronized (sentries) {
-            float[] sentryCoords = sentries.get(sentryName);
-            float[] coords = { lat, lon };
+    protected void addSentry(String sentryName, float lat, float lon) throws SentryNameException, IOException {
+        float[] coords = { lat, lon };
 
-            if (sentryCoords == null) {
-                sentries.put(sentryName, coords);
-            } else {
-                if (sentryCoords != coords) {
-                    throw new SentryNameException("Sentry already exists.");
+        Lock lock = beginUpdate();
+        try {
+            if (sentries.putIfAbsent(sentryName, coords) != null) {
+                throw new SentryNameException("Sentry already exists.");
+            }
+            if (wal != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(sentryName);
+                out.writeFloat(lat);
+                out.writeFloat(lon);
+                log(RECORD_SENTRY, bytes);
+            }
+        } finally {
+            endUpdate(lock);
+        }
+    }
+
+    /**
+     * @param sentryName string of the correspondent sentry
+     * @param macs       list that contains the 48-bit macs observed by the sentry
+     */
+    protected void addObservationList(String sentryName, List<Long> macs, VectorClock opTimestamp)
+            throws SentryNameException, IOException {
+        long time = System.currentTimeMillis(); // current date value
+        List<Observation> tmp = newObservations(sentryName, macs, time);
+        Applied update;
+
+        Lock lock = beginUpdate();
+        try {
+            int version;
+
+            if (wal == null) {
+                version = increaseLocalVersion();
+            } else { // durable before it is visible or acknowledged
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 8 * macs.size());
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0); // the version, set once it is taken
+                opTimestamp.write(out);
+                out.writeUTF(sentryName);
+                out.writeLong(time);
+                out.writeInt(macs.size());
+                for (long mac : macs) {
+                    out.writeLong(mac);
+                }
+                byte[] record = bytes.toByteArray();
+                long sequence;
+
+                // a report whose record can not be appended takes no version, and since
+                // records are synced in order the reports after a failed one fail as well
+                synchronized (reportOrder) {
+                    version = logVersion.get() + 1;
+                    ByteBuffer.wrap(record).putInt(0, version);
+                    sequence = wal.append(RECORD_REPORT, record);
+                    increaseLocalVersion();
                 }
+                wal.sync(sequence);
             }
+            update = addReport(version, tmp, opTimestamp);
+        } finally {
+            endUpdate(lock);
         }
+        awaitPublished(update);
     }
 
     /**
      * @param sentryName string of the correspondent sentry
-     * @param macs       arraylist that contains the macs observed by the sentry
+     * @param macs       list that contains the 48-bit macs observed by the sentry
+     * @param time       time of the report in epoch milliseconds
+     * @return List<Observation> of the report
      */
-    protected void addObservationList(String sentryName, ArrayList<String> macs, int[] opTimestamp)
-            throws SentryNameException, MacException {
-        float[] coords;
-        boolean macFail = false;
+    private List<Observation> newObservations(String sentryName, List<Long> macs, long time)
+            throws SentryNameException {
+        float[] coords = sentries.get(sentryName);
 
         List<Observation> tmp = new ArrayList<Observation>();
 
-        synchronized (sentries) { // lock
-            coords = sentries.get(sentryName);
-        }
         if (coords == null) {
             throw new SentryNameException("Sentry Name is not found");
         } else {
-            for (String tempMAC : macs) {
-                if (this.isMAC(tempMAC)) {
-                    Date date = new Date(); // this object contains the current date value
-                    tmp.add(new Observation(tempMAC, date, sentryName, coords[0], coords[1]));
-                } else {
-                    macFail = true;
-                }
-            }
-        }
-        if (macFail)
-            throw new MacException();
-
-        synchronized (this) {
-            increaseLocalVersion();
-            addLog(logVersion, tmp);
-
-            if (!addToPending(opTimestamp)) { // If update is not dependant, add to globalObservations
-                globalObservations.addAll(tmp);
-                increaseGlobalVersion();
+            int sentryId = sentryDictionary.getId(sentryName, coords[0], coords[1]);
+            for (long tempMAC : macs) {
+                tmp.add(new Observation(tempMAC, time, sentryId));
             }
         }
-
+        return tmp;
     }
 
     /**
-     * @param sentryName new sentry's name
-     * @param lat        sentry's latitude in a float variable
-     * @param lon        sentry's longitude in a float variable
+     * Adds a report to the log and, unless it depends on versions not seen yet,
+     * to the observations
+     * 
+     * @param version     log version of the report
+     * @param tmp         observations of the report
+     * @param opTimestamp timestamp the sentry had seen
+     * @return the applied report, null if it is pending
      */
-    protected void addObservation(String mac, Date timedate, String sentry, float lat, float lon) {
-        synchronized (globalObservations) {
-            globalObservations.add(new Observation(mac, timedate, sentry, lat, lon));
+    private Applied addReport(int version, List<Observation> tmp, VectorClock opTimestamp) {
+        addLog(version, tmp);
+
+        if (!addToPending(version, opTimestamp)) { // If update is not dependant, add to globalObservations
+            increaseGlobalVersion();
+            return apply(tmp, replica, 0);
         }
+        return null;
     }
 
     /**
-     * adds observation to the local log
-     * 
-     * @param ver update version
-     * @param obs List<Observation>
+     * @param mac      48-bit observed mac address
+     * @param timedate observation time in epoch milliseconds
+     * @param sentry   name of the sentry that registered the observation
+     * @param lat      sentry's latitude in a float variable
+     * @param lon      sentry's longitude in a float variable
      */
-    protected void addLog(int ver, List<Observation> obs) {
-        synchronized (localLog) {
-            localLog.put(ver, obs);
+    protected void addObservation(long mac, long timedate, String sentry, float lat, float lon)
+            throws IOException {
+        List<Observation> obs = Collections.singletonList(newObservation(mac, timedate, sentry, lat, lon));
+        Applied update;
+
+        Lock lock = beginUpdate();
+        try {
+            if (wal != null) {
+                logObservations(0, 0, obs, new TreeMap<Integer, List<Observation>>());
+            }
+            update = apply(obs, 0, 0);
+        } finally {
+            endUpdate(lock);
         }
+        awaitPublished(update);
     }
 
     /**
-     * Function for adding a list of dependencies to a given log version
+     * Adds observations that do not belong to an update of any replica, e.g.
+     * the ones anti-entropy found missing
      * 
-     * @param timestamp
-     * @return true if was able to add to pending
+     * @param obs observations, see newObservation
+     * @throws IOException if the change can not be logged
      */
-    protected boolean addToPending(int[] timestamp) {
-        int[] dependency;
-        List<int[]> dependencies = new ArrayList<int[]>();
+    protected void addObservations(List<Observation> obs) throws IOException {
+        Applied update;
 
-        for (int i = 0; i < MAXSIZE; i++) {
-            if (timestamp[i] > globalTimestamp[i]) {
-                dependency = new int[2];
-                dependency[0] = i + 1;
-                dependency[1] = timestamp[i];
-
-                dependencies.add(dependency);
+        Lock lock = beginUpdate();
+        try {
+            if (wal != null) {
+                logObservations(0, 0, obs, new TreeMap<Integer, List<Observation>>());
             }
+            update = apply(obs, 0, 0);
+        } finally {
+            endUpdate(lock);
         }
+        awaitPublished(update);
+    }
 
-        if (dependencies.size() > 0) {
-            pendingUpdates.put(logVersion, dependencies);
-            return true;
-        }
-        return false;
+    /**
+     * @param mac      48-bit observed mac address
+     * @param timedate observation time in epoch milliseconds
+     * @param sentry   name of the sentry that registered the observation
+     * @param lat      sentry's latitude in a float variable
+     * @param lon      sentry's longitude in a float variable
+     * @return Observation not yet added to the depot
+     */
+    protected Observation newObservation(long mac, long timedate, String sentry, float lat, float lon) {
+        return new Observation(mac, timedate, sentryDictionary.getId(sentry, lat, lon));
     }
 
     /**
-     * Function use to convert a given time string into a Date object
+     * Adds the observations of an update to the shards and publishes the update
+     * once the updates before it are published. The update is handed over even
+     * if adding it fails, so the updates after it are never held back.
      * 
-     * @param timedate
-     * @return Date Object
-     * @throws ParseException
+     * @param obs     observations of the update
+     * @param replicaNr replica whose version is changed by the update, 0 for
+     *                  none
+     * @param version   new version of replicaNr, 0 for one more update of this
+     *                  replica
+     * @return the update, see awaitPublished
      */
-    protected Date parseTimedate(String timedate) throws ParseException {
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-        java.util.Date timedateFormat = formatter.parse(timedate.replace('T', ' '));
-        return timedateFormat;
+    private Applied apply(List<Observation> obs, int replicaNr, int version) {
+        merkleCut.readLock().lock(); // every update with an arrival number is handed over before a cut
+        try {
+            int count = Math.max(1, obs.size()); // an update without observations still needs a number
+            long first = arrivals.getAndAdd(count) + 1; // one counter update per report
+            long number = first;
+            Applied update = new Applied(first + count - 1, replicaNr, version);
+
+            try {
+                for (Observation tmp : obs) {
+                    shardOf(tmp.getMacAddress()).add(tmp, number++);
+                    merkle.add(tmp, sentryDictionary);
+                }
+            } finally {
+                applied.put(first, update);
+                publish();
+            }
+            return update;
+        } finally {
+            merkleCut.readLock().unlock();
+        }
     }
 
     /**
+     * Waits, without holding any lock, until an update is visible, so a reply
+     * sent afterwards already has its version
      * 
-     * @param pos replica number
-     * @param val replica version
-     * @return true if val < timestamp[pos - 1]
+     * @param update update returned by apply, null for none
      */
-    protected boolean compareGlobalTimestamp(int pos, int val) {
-        if (globalTimestamp[pos - 1] >= val) {
-            return true;
+    private void awaitPublished(Applied update) {
+        boolean interrupted = false;
+
+        while (update != null) {
+            try {
+                update.published.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-        return false;
     }
 
     /**
-     * Add Pending Updates from log to global observations list
+     * Publishes the applied updates that follow the current view. Only the
+     * thread that removes the update right after the view can publish it, so the
+     * view is replaced without compare-and-set. A thread that finds nothing to
+     * publish leaves its update to the thread publishing the one before it.
      */
-    protected void addFromPending() {
-        Iterator<Entry<Integer, List<int[]>>> iter = pendingUpdates.entrySet().iterator();
-
-        // Iterate pending updates
-        while (iter.hasNext()) {
-            Entry<Integer, List<int[]>> tmp = iter.next();
+    private void publish() {
+        while (true) {
+            ReadView current = view.get();
+            Applied next = applied.remove(current.getVisible() + 1);
 
-            Iterator<int[]> iter2 = tmp.getValue().iterator();
+            if (next == null) {
+                return;
+            }
+            VectorClock timestamp = current.getTimestamp();
+            if (next.replicaNr > 0) {
+                timestamp = next.version == 0 ? timestamp.with(next.replicaNr, timestamp.get(next.replicaNr) + 1)
+                        : timestamp.advance(next.replicaNr, next.version);
+            }
+            view.set(new ReadView(next.last, timestamp));
+            next.published.countDown();
+        }
+    }
 
-            while (iter2.hasNext()) {
-                int[] tmp2 = iter2.next();
+    /**
+     * Update already in the shards, waiting for the updates before it
+     */
+    private static final class Applied {
+        private final long last; // last arrival number of the update
+        private final int replicaNr; // replica whose version it changes, 0 for none
+        private final int version; // new version of replicaNr, 0 for one more
+        private final CountDownLatch published = new CountDownLatch(1);
+
+        private Applied(long last, int replicaNr, int version) {
+            this.last = last;
+            this.replicaNr = replicaNr;
+            this.version = version;
+        }
+    }
 
-                // For each update pending, check how many versions it's dependant on
-                // If the version on globalObservations is already superior
+    /**
+     * @param replicas other replicas, a replica that is no longer registered
+     *                 stops holding back the log compaction. Its versions stay in
+     *                 the timestamps, its updates are still in the depot.
+     */
+    protected void setPeers(Collection<Integer> replicas) {
+        peers.retainAll(replicas);
+        peers.addAll(replicas);
+        acknowledged.keySet().retainAll(replicas);
+        peerTimestamps.keySet().retainAll(replicas);
+        compactLog();
+        compactRelayLogs();
+    }
 
-                if (compareGlobalTimestamp(tmp2[1], tmp2[0])) {
+    /**
+     * Registers the global timestamp of a peer's gossip request: it has seen
+     * this replica's updates up to its version of this replica and the other
+     * replicas' updates up to theirs
+     * 
+     * @param replicaNr peer replica
+     * @param timestamp its global timestamp
+     */
+    protected void acknowledge(int replicaNr, VectorClock timestamp) {
+        peerTimestamps.put(replicaNr, timestamp);
+        acknowledge(replicaNr, timestamp.get(replica));
+        compactRelayLogs();
+    }
 
-                    // Remove the dependency from the dependencies list
-                    pendingUpdates.get(tmp.getKey()).remove(tmp2);
+    /**
+     * Registers that a peer has seen this replica's updates up to a version,
+     * given by the timestamp of its gossip request
+     * 
+     * @param replicaNr peer replica
+     * @param version   its version of this replica
+     */
+    protected void acknowledge(int replicaNr, int version) {
+        Integer current = acknowledged.putIfAbsent(replicaNr, version);
 
-                    // If list is empty
-                    if (pendingUpdates.get(tmp.getKey()).size() == 0) {
-                        // Push the update
-                        globalObservations.addAll(localLog.get(tmp.getKey()));
-                        // Remove from pending
-                        pendingUpdates.remove(tmp.getKey());
-                    }
+        while (current != null && current < version && !acknowledged.replace(replicaNr, current, version)) {
+            current = acknowledged.get(replicaNr);
+        }
+        compactLog();
+    }
+
+    /**
+     * Removes from the log the versions every known peer has acknowledged,
+     * gossip no longer needs to send them. Updates still pending are kept.
+     */
+    private void compactLog() {
+        int lowest = getLowestAcknowledged();
+
+        synchronized (pendingUpdates) {
+            localLog.compact(lowest); // before the versions are removed, so no range stops at them
+            for (int ver = compacted + 1; ver <= lowest; ver++) {
+                if (!pendingUpdates.containsKey(ver)) {
+                    localLog.remove(ver);
                 }
             }
+            compacted = Math.max(compacted, lowest);
+        }
+        localLog.dropSegments(lowest);
+    }
+
+    /**
+     * Removes from the relay logs the versions every known peer has seen
+     */
+    private void compactRelayLogs() {
+        for (Map.Entry<Integer, UpdateLog> entry : relayLogs.entrySet()) {
+            int lowest = Integer.MAX_VALUE;
+            for (int peer : peers) {
+                if (peer != entry.getKey()) { // the origin never needs its own updates
+                    VectorClock timestamp = peerTimestamps.get(peer);
+                    lowest = Math.min(lowest, timestamp == null ? 0 : timestamp.get(entry.getKey()));
+                }
+            }
+            if (lowest == Integer.MAX_VALUE) { // no peer to relay to, a new one gets them from the origin
+                lowest = globalTimestamp.get().get(entry.getKey());
+            }
+            UpdateLog log = entry.getValue();
+            log.compact(lowest);
+            for (UpdateLog.Entry update : log.range(0, lowest)) {
+                log.remove(update.getVersion());
+            }
+            log.dropSegments(lowest);
+        }
+    }
+
+    /**
+     * Applies updates of another replica received by gossip, from that replica
+     * or relayed by a third one, and keeps them to relay to the peers that lack
+     * them. The same updates can arrive from several peers in a round, so the
+     * versions already applied are skipped.
+     * 
+     * @param origin  replica that made the updates
+     * @param version version of origin after the updates
+     * @param updates version --> observations of each update, see newObservation
+     * @throws IOException if the change can not be logged
+     */
+    protected void applyUpdates(int origin, int version, SortedMap<Integer, List<Observation>> updates)
+            throws IOException {
+        if (origin == replica) {
+            return; // relayed back to this replica
+        }
+        synchronized (getRelayLog(origin)) { // one peer's updates of origin at a time
+            int current = globalTimestamp.get().get(origin);
+            if (version <= current) {
+                return;
+            }
+            SortedMap<Integer, List<Observation>> missing = updates.tailMap(current + 1);
+            List<Observation> obs = new ArrayList<Observation>();
+            for (List<Observation> update : missing.values()) {
+                obs.addAll(update);
+            }
+            updateGlobalTimestamp(origin, version, obs, missing);
+        }
+    }
+
+    /**
+     * @param origin replica that made the updates
+     * @return log of the origin's updates kept to relay, created if needed
+     */
+    private UpdateLog getRelayLog(int origin) {
+        UpdateLog log = relayLogs.get(origin);
+        if (log == null) {
+            relayLogs.putIfAbsent(origin, new UpdateLog());
+            log = relayLogs.get(origin);
+        }
+        return log;
+    }
+
+    /**
+     * @return replicas whose updates are kept to relay
+     */
+    protected Collection<Integer> getRelayOrigins() {
+        return new ArrayList<Integer>(relayLogs.keySet());
+    }
+
+    /**
+     * @param origin replica that made the updates
+     * @param after  version of origin a peer already has
+     * @param max    most observations to return, the first update is returned
+     *               whatever its size
+     * @return updates of origin that follow that version without a version
+     *         missing, in version order. Empty if the next one is not kept.
+     */
+    protected List<UpdateLog.Entry> getRelayRange(int origin, int after, int max) {
+        List<UpdateLog.Entry> result = new ArrayList<UpdateLog.Entry>();
+        UpdateLog log = relayLogs.get(origin);
+        if (log == null) {
+            return result;
+        }
+
+        int expected = Math.max(after, 1) + 1; // version 1 of a replica has no update
+        int last = (int) Math.min(globalTimestamp.get().get(origin), (long) expected + max - 1);
+        int count = 0;
+        for (UpdateLog.Entry update : log.range(expected, last)) {
+            if (update.getVersion() != expected
+                    || (count > 0 && count + update.getObservations().size() > max)) {
+                break;
+            }
+            result.add(update);
+            count += update.getObservations().size();
+            expected++;
+        }
+        return result;
+    }
+
+    /**
+     * adds observation to the local log
+     * 
+     * @param ver update version
+     * @param obs List<Observation>
+     */
+    protected void addLog(int ver, List<Observation> obs) {
+        localLog.put(ver, obs);
+
+        int written = logWritten.get();
+        while (localLog.getEntry(written + 1) != null) { // the versions before ver may still be logging
+            logWritten.compareAndSet(written, written + 1);
+            written = logWritten.get();
+        }
+    }
+
+    /**
+     * Function for adding a list of dependencies to a given log version. Most
+     * updates have no dependencies, so the lock is only taken when the update
+     * has seen a version this replica has not.
+     * 
+     * @param ver       log version of the update
+     * @param timestamp
+     * @return true if was able to add to pending
+     */
+    protected boolean addToPending(int ver, VectorClock timestamp) {
+        if (!timestamp.isAheadOf(globalTimestamp.get())) {
+            return false;
+        }
+
+        synchronized (pendingUpdates) { // checked again, gossip may have arrived in between
+            List<int[]> dependencies = new ArrayList<int[]>();
+            VectorClock global = globalTimestamp.get();
+
+            for (int i = 0; i < timestamp.size(); i++) {
+                if (timestamp.getVersion(i) > global.get(timestamp.getReplica(i))) {
+                    dependencies.add(new int[] { timestamp.getReplica(i), timestamp.getVersion(i) });
+                }
+            }
+            return addPending(ver, dependencies);
+        }
+    }
+
+    /**
+     * Indexes an update by each dependency this replica has not seen yet, called
+     * with the pendingUpdates lock
+     * 
+     * @param ver          log version of the update
+     * @param dependencies (ReplicaNr , ReplicaVersion) seen before the update
+     * @return true if the update has to wait, false if every dependency is met
+     */
+    private boolean addPending(int ver, List<int[]> dependencies) {
+        PendingUpdate update = new PendingUpdate(ver, dependencies);
+
+        for (int[] dependency : dependencies) {
+            if (compareGlobalTimestamp(dependency[0], dependency[1])) {
+                continue;
+            }
+            TreeMap<Integer, List<PendingUpdate>> versions = waiting.get(dependency[0]);
+            if (versions == null) {
+                versions = new TreeMap<Integer, List<PendingUpdate>>();
+                waiting.put(dependency[0], versions);
+            }
+            List<PendingUpdate> updates = versions.get(dependency[1]);
+            if (updates == null) {
+                updates = new ArrayList<PendingUpdate>(1);
+                versions.put(dependency[1], updates);
+            }
+            updates.add(update);
+            update.unmet++;
+        }
+
+        if (update.unmet > 0) {
+            pendingUpdates.put(ver, update);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @param pos replica number
+     * @param val replica version
+     * @return true if val <= version of replica pos
+     */
+    protected boolean compareGlobalTimestamp(int pos, int val) {
+        if (globalTimestamp.get().get(pos) >= val) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the pending updates unblocked by a new version of a replica to the
+     * observations, in log version order. Only the updates waiting for a version
+     * up to the new one are looked at, called with the pendingUpdates lock.
+     * 
+     * @param replicaNr replica whose version changed
+     * @param version   new version of that replica
+     */
+    private void releasePending(int replicaNr, int version) {
+        TreeMap<Integer, List<PendingUpdate>> versions = waiting.get(replicaNr);
+
+        if (versions == null) {
+            return;
+        }
+        Map<Integer, List<PendingUpdate>> met = versions.headMap(version, true);
+        List<PendingUpdate> released = new ArrayList<PendingUpdate>();
+
+        for (List<PendingUpdate> updates : met.values()) {
+            for (PendingUpdate update : updates) {
+                if (--update.unmet == 0) {
+                    released.add(update);
+                }
+            }
+        }
+        met.clear();
+        if (versions.isEmpty()) {
+            waiting.remove(replicaNr);
+        }
+
+        Collections.sort(released, new Comparator<PendingUpdate>() {
+            @Override
+            public int compare(PendingUpdate one, PendingUpdate two) {
+                return Integer.compare(one.version, two.version);
+            }
+        });
+        for (PendingUpdate update : released) {
+            pendingUpdates.remove(update.version);
+            apply(localLog.get(update.version), 0, 0);
+        }
+    }
+
+    /**
+     * Update of the log waiting for versions of other replicas
+     */
+    private static final class PendingUpdate {
+        private final int version; // log version of the update
+        private final List<int[]> dependencies; // (ReplicaNr , ReplicaVersion) seen before the update
+        private int unmet = 0; // dependencies not seen yet, guarded by pendingUpdates
+
+        private PendingUpdate(int version, List<int[]> dependencies) {
+            this.version = version;
+            this.dependencies = dependencies;
         }
     }
 
@@ -479,22 +1540,623 @@ public class DepotBase {
      * @param replicaNr
      * @param newVal
      */
-    protected void updateGlobalTimestamp(int replicaNr, int newVal) {
-        globalTimestamp[replicaNr - 1] = newVal;
+    protected void updateGlobalTimestamp(int replicaNr, int newVal) throws IOException {
+        updateGlobalTimestamp(replicaNr, newVal, Collections.<Observation>emptyList());
     }
 
     /**
-     * Adds an observation list from gossip, updates the global timestamp and checks
-     * if the new added version fixed a dependency on the pending variable
+     * Adds the observations received by gossip and updates the global timestamp
+     * with the new version, queries see both at the same time. The pending
+     * updates that were waiting for the version are added afterwards.
+     * 
+     * @param replicaNr replica that sent the observations
+     * @param newVal    version of that replica after the observations
+     * @param obs       observations of the gossip reply, see newObservation
+     * @throws IOException if the change can not be logged
+     */
+    protected void updateGlobalTimestamp(int replicaNr, int newVal, List<Observation> obs) throws IOException {
+        updateGlobalTimestamp(replicaNr, newVal, obs, new TreeMap<Integer, List<Observation>>());
+    }
+
+    /**
+     * Adds the observations received by gossip, like updateGlobalTimestamp, and
+     * keeps the updates they came in to relay, in the same logged change so a
+     * snapshot or a replay of the log has both
+     * 
+     * @param replicaNr replica that made the updates
+     * @param newVal    version of that replica after the observations
+     * @param obs       observations of the updates, in version order
+     * @param relayed   version --> observations of each update, empty for
+     *                  none
+     * @throws IOException if the change can not be logged
+     */
+    private void updateGlobalTimestamp(int replicaNr, int newVal, List<Observation> obs,
+            SortedMap<Integer, List<Observation>> relayed) throws IOException {
+        Applied update;
+
+        Lock lock = beginUpdate(); // taken before pendingUpdates, like the reports do
+        try {
+            if (wal != null) {
+                logObservations(replicaNr, newVal, obs, relayed);
+            }
+            update = apply(obs, replicaNr, newVal);
+            if (!relayed.isEmpty()) {
+                UpdateLog log = getRelayLog(replicaNr);
+                for (Map.Entry<Integer, List<Observation>> entry : relayed.entrySet()) {
+                    log.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            synchronized (pendingUpdates) { // a report checking its dependencies sees the version and the
+                                            // updates waiting for it together
+                advance(globalTimestamp, replicaNr, newVal); // never back to an older version
+                releasePending(replicaNr, newVal);
+            }
+        } finally {
+            endUpdate(lock);
+        }
+        awaitPublished(update);
+    }
+
+    /**
+     * Adds an observation list from gossip, updates the global timestamp and
+     * adds the pending updates that were waiting for the new version
      * 
      * @param obs
-     * @param timestamp
      * @param replicaNr
+     * @param version
      */
-    protected void addObservationsFromGossip(List<Observation> obs, int[] timestamp, int replicaNr) {
-        globalObservations.addAll(obs);
-        updateGlobalTimestamp(replicaNr, timestamp[replicaNr - 1]);
-        addFromPending();
+    protected void addObservationsFromGossip(List<Observation> obs, int replicaNr, int version)
+            throws IOException {
+        updateGlobalTimestamp(replicaNr, version, obs);
+    }
+
+    // Write-ahead log
+
+    /**
+     * Starts a change that is logged, so a snapshot never sees it half applied
+     * 
+     * @return lock to pass to endUpdate, null when the depot is not logging
+     */
+    private Lock beginUpdate() {
+        if (wal == null) {
+            return null;
+        }
+        Lock lock = checkpoint.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private void endUpdate(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a record to the write-ahead log and waits until it is on disk.
+     * Concurrent callers wait for the same fsync.
+     * 
+     * @param type  record type
+     * @param bytes record contents
+     * @throws IOException if the log can not be written
+     */
+    private void log(byte type, ByteArrayOutputStream bytes) throws IOException {
+        wal.sync(wal.append(type, bytes.toByteArray()));
+    }
+
+    /**
+     * Logs observations that did not come from a report, with the names and
+     * coordinates of their sentries since dictionary ids are not kept
+     * 
+     * @param replicaNr replica that sent the observations, 0 for none
+     * @param version   version of that replica after the observations
+     * @param obs       observations to log
+     * @param relayed   version --> observations of each update kept to relay,
+     *                  the same observations as obs, only their sizes are
+     *                  logged
+     */
+    private void logObservations(int replicaNr, int version, List<Observation> obs,
+            SortedMap<Integer, List<Observation>> relayed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 20 * obs.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<Integer, Integer> table = new HashMap<Integer, Integer>(); // dictionary id --> position in the record
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for (Observation tmp : obs) {
+            if (!table.containsKey(tmp.getSentryId())) {
+                table.put(tmp.getSentryId(), ids.size());
+                ids.add(tmp.getSentryId());
+            }
+        }
+
+        out.writeInt(replicaNr);
+        out.writeInt(version);
+        out.writeInt(ids.size());
+        for (int id : ids) {
+            out.writeUTF(sentryDictionary.getName(id));
+            out.writeFloat(sentryDictionary.getLat(id));
+            out.writeFloat(sentryDictionary.getLon(id));
+        }
+        out.writeInt(obs.size());
+        for (Observation tmp : obs) {
+            out.writeLong(tmp.getMacAddress());
+            out.writeLong(tmp.getTimeDate());
+            out.writeInt(table.get(tmp.getSentryId()));
+        }
+        out.writeInt(relayed.size());
+        for (Map.Entry<Integer, List<Observation>> entry : relayed.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue().size());
+        }
+        log(RECORD_OBSERVATIONS, bytes);
+    }
+
+    /**
+     * Applies a record of the write-ahead log again, the depot is not logging
+     * yet so nothing is written back
+     * 
+     * @param type record type
+     * @param in   record contents
+     */
+    private void replay(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+        case RECORD_SENTRY:
+            sentries.putIfAbsent(in.readUTF(), new float[] { in.readFloat(), in.readFloat() });
+            break;
+
+        case RECORD_REPORT:
+            int version = in.readInt();
+            VectorClock opTimestamp = VectorClock.read(in);
+            String sentryName = in.readUTF();
+            long time = in.readLong();
+            List<Long> macs = new ArrayList<Long>();
+            for (int i = in.readInt(); i > 0; i--) {
+                macs.add(in.readLong());
+            }
+            try {
+                List<Observation> tmp = newObservations(sentryName, macs, time);
+                while (logVersion.get() < version) { // replayed reports may be out of version order
+                    logVersion.compareAndSet(logVersion.get(), version);
+                }
+                advance(localTimestamp, replica, version);
+                addReport(version, tmp, opTimestamp);
+            } catch (SentryNameException e) {
+                throw new IOException("Write-ahead log reports unknown sentry " + sentryName);
+            }
+            break;
+
+        case RECORD_OBSERVATIONS:
+            int replicaNr = in.readInt();
+            int newVal = in.readInt();
+            String[] names = new String[in.readInt()];
+            float[][] coords = new float[names.length][];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                coords[i] = new float[] { in.readFloat(), in.readFloat() };
+            }
+            List<Observation> obs = new ArrayList<Observation>();
+            for (int i = in.readInt(); i > 0; i--) {
+                long mac = in.readLong();
+                long timedate = in.readLong();
+                int sentry = in.readInt();
+                obs.add(newObservation(mac, timedate, names[sentry], coords[sentry][0], coords[sentry][1]));
+            }
+            SortedMap<Integer, List<Observation>> relayed = new TreeMap<Integer, List<Observation>>();
+            int position = 0;
+            for (int i = in.readInt(); i > 0; i--) { // the updates the observations came in, kept to relay
+                int relayedVersion = in.readInt();
+                int size = in.readInt();
+                relayed.put(relayedVersion, new ArrayList<Observation>(obs.subList(position, position + size)));
+                position += size;
+            }
+            if (replicaNr > 0) {
+                updateGlobalTimestamp(replicaNr, newVal, obs, relayed);
+            } else {
+                apply(obs, 0, 0);
+            }
+            break;
+
+        case RECORD_CLEAR:
+            clear();
+            break;
+
+        default:
+            throw new IOException("Unknown write-ahead log record " + type);
+        }
+    }
+
+    // Snapshots
+
+    /**
+     * Writes a snapshot of the depot to the data directory and deletes the
+     * older snapshots and the log segments it covers. The cut waits for the
+     * updates in progress, so the snapshot has exactly the records up to the
+     * log's last sequence number. The observations are then written, one file
+     * per shard in parallel, while new updates carry on. A clear of the depot
+     * in the meantime does not wait for the files, the snapshot is dropped.
+     * 
+     * @throws IOException if the snapshot can not be written
+     */
+    protected void snapshot() throws IOException {
+        final long sequence;
+        final ReadView current;
+        Map<String, float[]> sentriesCopy;
+        Map<Integer, List<Observation>> logCopy;
+        Map<Integer, List<int[]>> pendingCopy = new TreeMap<Integer, List<int[]>>();
+        Map<Integer, Map<Integer, List<Observation>>> relayCopy;
+        Map<Integer, Integer> relayCompacted = new TreeMap<Integer, Integer>();
+        Map<Integer, Integer> acknowledgedCopy;
+        Map<Integer, VectorClock> peerTimestampsCopy;
+        VectorClock writerTimestamp;
+        VectorClock localCopy;
+        int localVersion;
+        int version;
+        final SentryDictionary dictionary;
+        int dictionarySize;
+        int cutGeneration;
+
+        checkpoint.writeLock().lock();
+        try {
+            sequence = wal.getLastSequence();
+            if (sequence == snapshotSequence) {
+                return;
+            }
+            current = view.get();
+            sentriesCopy = new TreeMap<String, float[]>(sentries);
+            logCopy = localLog.copy(); // the lists are never changed
+            synchronized (pendingUpdates) {
+                for (PendingUpdate tmp : pendingUpdates.values()) {
+                    pendingCopy.put(tmp.version, tmp.dependencies); // never changed
+                }
+            }
+            relayCopy = new TreeMap<Integer, Map<Integer, List<Observation>>>();
+            for (Entry<Integer, UpdateLog> entry : relayLogs.entrySet()) { // updates promised to the peers
+                relayCompacted.put(entry.getKey(), entry.getValue().getCompacted());
+                relayCopy.put(entry.getKey(), entry.getValue().copy());
+            }
+            acknowledgedCopy = new TreeMap<Integer, Integer>(acknowledged);
+            peerTimestampsCopy = new TreeMap<Integer, VectorClock>(peerTimestamps);
+            writerTimestamp = getWriterTimestamp();
+            localCopy = getLocalTimestamp();
+            localVersion = logVersion.get();
+            version = globalVersion.get();
+            dictionary = sentryDictionary; // replaced, not changed, by a clear
+            dictionarySize = dictionary.size();
+            synchronized (snapshotFiles) {
+                cutGeneration = generation;
+            }
+        } finally {
+            checkpoint.writeLock().unlock();
+        }
+
+        wal.roll();
+        File directory = new File(dataDirectory, String.format("%s%020d", SNAPSHOT_PREFIX, sequence));
+        final File tmp = new File(directory.getPath() + ".tmp");
+        if (!tmp.isDirectory() && !tmp.mkdirs()) {
+            throw new IOException("Can not create " + tmp);
+        }
+
+        FileOutputStream stream = new FileOutputStream(new File(tmp, "meta"));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        try {
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeInt(shards.length);
+            out.writeLong(current.getVisible());
+            out.writeInt(localVersion);
+            out.writeInt(version);
+            current.getTimestamp().write(out);
+            writerTimestamp.write(out);
+            localCopy.write(out);
+
+            out.writeInt(sentriesCopy.size());
+            for (Entry<String, float[]> sentry : sentriesCopy.entrySet()) {
+                out.writeUTF(sentry.getKey());
+                out.writeFloat(sentry.getValue()[0]);
+                out.writeFloat(sentry.getValue()[1]);
+            }
+
+            out.writeInt(dictionarySize);
+            for (int id = 0; id < dictionarySize; id++) {
+                out.writeUTF(dictionary.getName(id));
+                out.writeFloat(dictionary.getLat(id));
+                out.writeFloat(dictionary.getLon(id));
+            }
+
+            out.writeInt(logCopy.size());
+            for (Entry<Integer, List<Observation>> entry : logCopy.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Observation obs : entry.getValue()) {
+                    writeObservation(out, obs);
+                }
+            }
+
+            out.writeInt(pendingCopy.size());
+            for (Entry<Integer, List<int[]>> entry : pendingCopy.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (int[] dependency : entry.getValue()) {
+                    out.writeInt(dependency[0]);
+                    out.writeInt(dependency[1]);
+                }
+            }
+
+            out.writeInt(relayCopy.size());
+            for (Entry<Integer, Map<Integer, List<Observation>>> relay : relayCopy.entrySet()) {
+                out.writeInt(relay.getKey());
+                out.writeInt(relayCompacted.get(relay.getKey()));
+                out.writeInt(relay.getValue().size());
+                for (Entry<Integer, List<Observation>> entry : relay.getValue().entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (Observation obs : entry.getValue()) {
+                        writeObservation(out, obs);
+                    }
+                }
+            }
+
+            out.writeInt(acknowledgedCopy.size());
+            for (Entry<Integer, Integer> entry : acknowledgedCopy.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            out.writeInt(peerTimestampsCopy.size());
+            for (Entry<Integer, VectorClock> entry : peerTimestampsCopy.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < shards.length; i++) {
+            final DepotShard shard = shards[i];
+            final File file = new File(tmp, SHARD_PREFIX + i);
+            writes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    List<DepotShard.Arrival> arrivals = shard.getArrivals(current);
+                    FileOutputStream stream = new FileOutputStream(file);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+                    try {
+                        out.writeInt(arrivals.size());
+                        for (DepotShard.Arrival arrival : arrivals) {
+                            out.writeLong(arrival.number);
+                            writeObservation(out, arrival.observation);
+                        }
+                        out.flush();
+                        stream.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(writes);
+
+        synchronized (snapshotFiles) {
+            if (generation != cutGeneration) { // the shards were cleared while they were written
+                deleteSnapshot(tmp);
+                return;
+            }
+            Files.move(tmp.toPath(), directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            snapshotSequence = sequence;
+        }
+
+        for (File old : getSnapshots()) {
+            if (getSequence(old) < sequence) {
+                deleteSnapshot(old);
+            }
+        }
+        wal.truncate(sequence);
+    }
+
+    /**
+     * Loads the most recent complete snapshot of a data directory, the shard
+     * files are read in parallel
+     * 
+     * @param directory data directory of this replica
+     * @return sequence number of the last log record in the snapshot, 0 if
+     *         there is no snapshot
+     * @throws IOException if the snapshot can not be read
+     */
+    private long loadSnapshot(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        File latest = null;
+
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().startsWith(SNAPSHOT_PREFIX) && file.getName().endsWith(".tmp")) {
+                deleteSnapshot(file); // interrupted while being written
+            }
+        }
+        for (File snapshot : getSnapshots(directory)) {
+            latest = snapshot;
+        }
+        if (latest == null) {
+            return 0;
+        }
+
+        DataInputStream in = openSnapshotInput(new File(latest, "meta"));
+        int shardFiles;
+        try {
+            if (in.readInt() != SNAPSHOT_FORMAT) {
+                throw new IOException("Snapshot " + latest + " has a different format");
+            }
+            shardFiles = in.readInt();
+            long visible = in.readLong();
+            logVersion.set(in.readInt());
+            logWritten.set(logVersion.get()); // no update was being logged at the cut
+            globalVersion.set(in.readInt());
+            VectorClock viewTimestamp = VectorClock.read(in);
+            globalTimestamp.set(VectorClock.read(in));
+            localTimestamp.set(VectorClock.read(in));
+            arrivals.set(visible);
+            view.set(new ReadView(visible, viewTimestamp));
+
+            for (int i = in.readInt(); i > 0; i--) {
+                sentries.put(in.readUTF(), new float[] { in.readFloat(), in.readFloat() });
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                sentryDictionary.getId(in.readUTF(), in.readFloat(), in.readFloat()); // ids in the same order
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                int version = in.readInt();
+                List<Observation> obs = new ArrayList<Observation>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    obs.add(readObservation(in));
+                }
+                localLog.put(version, obs);
+            }
+            synchronized (pendingUpdates) {
+                compacted = logVersion.get();
+                while (compacted > 0 && localLog.getEntry(compacted) != null) { // the versions before it were
+                    compacted--;                                                // logged or compacted at the cut
+                }
+                localLog.compact(compacted);
+                for (int i = in.readInt(); i > 0; i--) {
+                    int version = in.readInt();
+                    List<int[]> dependencies = new ArrayList<int[]>();
+                    for (int j = in.readInt(); j > 0; j--) {
+                        dependencies.add(new int[] { in.readInt(), in.readInt() });
+                    }
+                    addPending(version, dependencies); // only the ones still unmet wait
+                }
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                UpdateLog log = getRelayLog(in.readInt());
+                log.compact(in.readInt());
+                for (int j = in.readInt(); j > 0; j--) {
+                    int version = in.readInt();
+                    List<Observation> obs = new ArrayList<Observation>();
+                    for (int k = in.readInt(); k > 0; k--) {
+                        obs.add(readObservation(in));
+                    }
+                    log.put(version, obs);
+                }
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                acknowledged.put(in.readInt(), in.readInt());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                peerTimestamps.put(in.readInt(), VectorClock.read(in));
+            }
+        } finally {
+            in.close();
+        }
+
+        List<Callable<Void>> loads = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < shardFiles; i++) {
+            final File file = new File(latest, SHARD_PREFIX + i);
+            loads.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    DataInputStream in = openSnapshotInput(file);
+                    try {
+                        for (int j = in.readInt(); j > 0; j--) {
+                            long number = in.readLong();
+                            Observation obs = readObservation(in);
+                            shardOf(obs.getMacAddress()).load(obs, number); // the shard count may have changed
+                            merkle.add(obs, sentryDictionary);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(loads);
+
+        System.out.println("Loaded snapshot " + latest.getName());
+        return getSequence(latest);
+    }
+
+    /**
+     * Runs tasks in parallel and waits for all of them
+     * 
+     * @param tasks
+     * @throws IOException the first failure of a task
+     */
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        List<ForkJoinTask<Void>> forks = new ArrayList<ForkJoinTask<Void>>(tasks.size());
+
+        for (Callable<Void> task : tasks) {
+            forks.add(ForkJoinPool.commonPool().submit(task));
+        }
+        for (ForkJoinTask<Void> fork : forks) {
+            try {
+                fork.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a snapshot file");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return complete snapshots of the data directory, oldest first
+     */
+    private List<File> getSnapshots() {
+        return getSnapshots(dataDirectory);
+    }
+
+    private static List<File> getSnapshots(File directory) {
+        List<File> snapshots = new ArrayList<File>();
+        File[] files = directory.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory() && file.getName().startsWith(SNAPSHOT_PREFIX)
+                    && !file.getName().endsWith(".tmp")) {
+                snapshots.add(file);
+            }
+        }
+        Collections.sort(snapshots); // the names have a fixed width
+        return snapshots;
+    }
+
+    /**
+     * @param snapshot snapshot directory
+     * @return sequence number of the last log record in the snapshot
+     */
+    private static long getSequence(File snapshot) {
+        return Long.parseLong(snapshot.getName().substring(SNAPSHOT_PREFIX.length()));
+    }
+
+    private static void deleteSnapshot(File snapshot) {
+        File[] files = snapshot.listFiles();
+
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        if (!snapshot.delete()) {
+            System.out.println("Failed to delete " + snapshot);
+        }
+    }
+
+    private static DataInputStream openSnapshotInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    private static void writeObservation(DataOutputStream out, Observation obs) throws IOException {
+        out.writeLong(obs.getMacAddress());
+        out.writeLong(obs.getTimeDate());
+        out.writeInt(obs.getSentryId());
+    }
+
+    private static Observation readObservation(DataInputStream in) throws IOException {
+        return new Observation(in.readLong(), in.readLong(), in.readInt());
     }
 
 }
@@ -1,11 +1,12 @@
 package pt.sayf.depot.server;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
-import java.text.ParseException;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 public class DepotServerApp {
 
@@ -36,8 +37,6 @@ public class DepotServerApp {
 
 		Server server = null;
 
-		Thread t = null;
-
 		try {
 
 			zkNaming = new ZKNaming(zkAddr);
@@ -45,38 +44,28 @@ public class DepotServerApp {
 			// publish
 			zkNaming.rebind((path + "/" + replica), host, port);
 
-			final DepotServiceImpl impl = new DepotServiceImpl(Integer.parseInt(replica));
+			// -Ddepot.data keeps the updates on disk, otherwise the replica only lives in memory
+			String dataDir = System.getProperty("depot.data");
+			final DepotServiceImpl impl = dataDir == null ? new DepotServiceImpl(Integer.parseInt(replica))
+					: new DepotServiceImpl(Integer.parseInt(replica), new File(dataDir, "replica" + replica));
 
-			// Create a new server to listen on port
-			server = ServerBuilder.forPort(Integer.parseInt(port)).addService(impl).build();
+			// Create a new server to listen on port, the other replicas keep their channels alive with pings
+			server = NettyServerBuilder.forPort(Integer.parseInt(port)).addService(impl)
+					.permitKeepAliveTime(PeerChannels.KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+					.permitKeepAliveWithoutCalls(true).build();
 
 			server.start();
 			// Server threads are running in the background.
 			System.out.println("Server started");
 
-			// Starts timer thread
-			t = new Thread(new Runnable() {
-				public void run() {
-					try {
-						while(true) {
-							
-							impl.sendGossip(zkNaming, path);
-							Thread.sleep(30000);
-						}
-					} catch (ZKNamingException | ParseException e) {
-						System.err.printf("Caught exception while in gossip: %s\n", e);
-					} catch (InterruptedException e) {
-						Thread.yield();
-					}
-				}
-			});
-
-			t.start();
+			// Starts the gossip rounds, sooner after reports and less often when idle
+			impl.startGossip(zkNaming, path);
 
 			// wait
 			System.out.println("Awaiting connections");
 			System.out.println("Press enter to shutdown");
 			System.in.read();
+			impl.shutdown(); // stops the gossip and closes the channels to the other replicas
 			
 			
 
@@ -96,10 +85,6 @@ public class DepotServerApp {
 			try {
 				if (server != null) {
 					server.shutdown();
-					if (t != null) {
-						t.interrupt(); // Interrupts the thread which causes InterruptedException
-										// and forces the thread to end
-					}
 					System.exit(0);
 				}
 
@@ -5,14 +5,33 @@ import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
-import java.text.ParseException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import pt.sayf.depot.grpc.Depot;
@@ -21,12 +40,61 @@ import pt.sayf.depot.grpc.Depot.ctrlPingReply.Builder;
 
 public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 
+	private static final int STREAM_CHUNK_SIZE = 256; // observations per searchChunk
+
+	// peers asked in each gossip round, -Ddepot.gossip.fanout overrides it
+	static final int GOSSIP_FANOUT = Integer.getInteger("depot.gossip.fanout", 3);
+	// milliseconds a peer has to answer a gossip request, -Ddepot.gossip.deadline overrides it
+	static final long GOSSIP_DEADLINE = Long.getLong("depot.gossip.deadline", 5000);
+	// gzip on gossip requests and replies, -Ddepot.gossip.gzip=true turns it on
+	static final boolean GOSSIP_GZIP = Boolean.getBoolean("depot.gossip.gzip");
+	// most versions and observations in a catch-up chunk, -Ddepot.catchup.chunk overrides it
+	static final int CATCHUP_CHUNK = Integer.getInteger("depot.catchup.chunk", 4096);
+	private static final int CATCHUP_WINDOW = 4; // chunks sent before the replica acknowledges them
+	// milliseconds a catch-up may take, -Ddepot.catchup.deadline overrides it
+	static final long CATCHUP_DEADLINE = Long.getLong("depot.catchup.deadline", 600000);
+	// gossip rounds between anti-entropy with a peer, -Ddepot.antientropy.rounds overrides it, 0 disables it
+	static final int ANTI_ENTROPY_ROUNDS = Integer.getInteger("depot.antientropy.rounds", 10);
+	private static final int MERKLE_LEAVES = 64; // leaves whose observations are asked in one call
+	// observations with the same MAC, time and sentry are copies of one, anti-entropy adds it once
+	private static final Comparator<Observation> SAME_OBSERVATION = new Comparator<Observation>() {
+		@Override
+		public int compare(Observation one, Observation two) {
+			int result = Long.compare(one.getMacAddress(), two.getMacAddress());
+			if (result == 0) {
+				result = Long.compare(one.getTimeDate(), two.getTimeDate());
+			}
+			return result != 0 ? result : Integer.compare(one.getSentryId(), two.getSentryId());
+		}
+	};
+
 	private DepotBase depot;
+	private PeerChannels peerChannels = new PeerChannels(); // channels to the other replicas, used by gossip
+	private Random random = new Random(); // picks the peers of each gossip round
+	private int rounds = 0; // gossip rounds done, only used by the gossip thread
+	// peers that compacted versions before this replica had them, until anti-entropy with them runs
+	private Set<Integer> compactionGaps = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	// peers a catch-up is running with, at most one each, it may outlast several rounds
+	private Set<Integer> catchUps = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private GossipScheduler gossipScheduler; // null until startGossip
 
 	DepotServiceImpl(int replica) {
 		depot = new DepotBase(replica);
 	}
 
+	/**
+	 * Service of a replica that keeps its updates in a data directory, the
+	 * depot is recovered from the directory before the service starts
+	 * 
+	 * @param replica
+	 * @param dataDir data directory of this replica
+	 * @throws IOException if the data directory can not be read
+	 */
+	DepotServiceImpl(int replica, File dataDir) throws IOException {
+		depot = new DepotBase(replica);
+		depot.recover(dataDir);
+	}
+
 	@Override
 	public void join(Depot.joinRequest request, StreamObserver<Depot.joinReply> responseObserver) {
 		String name = request.getName();
@@ -37,13 +105,13 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 		try {
 			depot.addSentry(name, lat, lon);
 
-		} catch (SentryNameException se) {
+		} catch (SentryNameException | IOException e) {
 			System.out.println("Failed to add Sentry.");
 			status = false;
 		}
 		System.out.println("New Sentry Joined.\n");
 		reply = Depot.joinReply.newBuilder().setStatus(status).setReplicaNr(depot.getReplica())
-				.addAllTimestamp(depot.getGlobalTimestampAsCollection()).build();
+				.setTimestamp(toClock(depot.getGlobalTimestamp())).build();
 		responseObserver.onNext(reply);
 		responseObserver.onCompleted();
 	}
@@ -51,29 +119,29 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 	@Override
 	public void report(Depot.reportRequest request, StreamObserver<Depot.reportReply> responseObserver) {
 		String sentryName = request.getSentry();
-		ArrayList<String> macs = new ArrayList<String>();
+		ArrayList<Long> macs = new ArrayList<Long>();
 		Depot.reportReply reply;
 		boolean status = true;
 
-		int i = request.getObservationsCount();
-		while (i-- > 0) { // Loads macs from proto request
-			macs.add(request.getObservations(i));
-		}
-		
-		int[] timestamp = new int[depot.MAXSIZE];
-		for(i = 0; i < depot.MAXSIZE; i++) {
-			timestamp[i] = request.getTimestamp(i);
-		}
+		VectorClock timestamp = toTimestamp(request.getTimestamp());
 
 		try {
+			int i = request.getObservationsCount();
+			while (i-- > 0) { // Loads macs from proto request
+				macs.add(MacAddress.parse(request.getObservations(i)));
+			}
+
 			depot.addObservationList(sentryName, macs, timestamp);
+			if (gossipScheduler != null) {
+				gossipScheduler.reported(macs.size());
+			}
 			
 		} catch (Exception e) { // Can be either wrong sentry name or invalid MAC address
 			System.out.println("Failed to add one or more observations");
 			status = false;
 		}
 
-		reply = Depot.reportReply.newBuilder().setStatus(status).addAllTimestamp(depot.getGlobalTimestampAsCollection()).build();
+		reply = Depot.reportReply.newBuilder().setStatus(status).setTimestamp(toClock(depot.getGlobalTimestamp())).build();
 		responseObserver.onNext(reply);
 
 		responseObserver.onCompleted();
@@ -81,36 +149,48 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 
 	@Override 
 	public void search(Depot.searchRequest request, StreamObserver<Depot.searchReply> responseObserver) {
-		List<Observation> tempObservations = depot.sortObservationList(depot.getObservations());
-		List<Observation> resultObservations = new ArrayList<Observation>();
 		ArrayList<Depot.observ> observations = new ArrayList<Depot.observ>(); // by time
-		String mac = request.getMac();
 		int maxResults = request.getMaxResults();
+		int maxTotal = request.getMaxTotal();
+		VectorClock timestamp = toTimestamp(request.getTimestamp());
+		ByteString nextPageToken = ByteString.EMPTY;
 		Depot.searchReply reply;
-		boolean sendData = true;
+		ReadView view = depot.getReadView(); // every read of the request uses this snapshot
+		boolean sendData = isUpToDate(timestamp, view);
 
-		for (Observation o : tempObservations) {
-			if (o.getMacAddress().equals(mac)) {
-				resultObservations.add(o);
-			}
-		}
+		if (sendData){
+			try {
+				// a single MAC, so the global limit is also a limit per MAC
+				if (maxTotal > 0 && (maxResults <= 0 || maxTotal < maxResults)) {
+					maxResults = maxTotal;
+				}
+				long mac = MacAddress.parse(request.getMac());
 
-		for (int i = 0; i < depot.getMAXSIZE(); i++) { // check if client's timestamp is older than replica's
-			if(request.getTimestamp(i) > depot.getGlobalTimestamp()[i]){
-				sendData = false;
+				if (request.getPageSize() > 0) { // one page, resumed from the token
+					ObservationCursor cursor = openCursor(Collections.singletonList(mac), maxResults,
+							request.getPageToken(), view);
+					if (cursor != null) {
+						view = cursor.getView(); // the view of the first page
+						observations = processObservations(cursor.next(request.getPageSize()));
+						nextPageToken = toPageToken(cursor);
+					}
+				} else if (maxResults == 1) { // track reads the latest sighting directly
+					Observation latest = depot.getLatestObservation(mac, view);
+					if (latest != null) {
+						observations.add(toObserv(latest));
+					}
+				} else {
+					observations = processObservations(depot.getObservationsByMac(mac, maxResults, view));
+				}
+			} catch (MacException e) {
+				System.out.println(e.getMessage());
 			}
 		}
 
-		if (sendData){
-			observations = processObservations(resultObservations, maxResults);
-		}
-
 		if (observations.size() > 0) {
 			Depot.searchReply.Builder builder = Depot.searchReply.newBuilder();
-			builder.addAllObservations(observations);
-			for (int i = 0; i < depot.getMAXSIZE(); i++) {
-				builder.addTimestamp(depot.getGlobalTimestamp()[i]);
-			}
+			builder.addAllObservations(observations).setNextPageToken(nextPageToken);
+			builder.setTimestamp(toClock(view.getTimestamp()));
 
 			reply = builder.build();
 		}
@@ -129,25 +209,41 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 		boolean lastBits = request.getLastBits();
 		Depot.searchMatchReply reply;
 		ArrayList<Depot.observ> observations = new ArrayList<Depot.observ>();
-		List<Observation> resultObservations = depot.sortObservationList(depot.getObservationByMac(fragMac, lastBits));
-		boolean sendData = true;
-
-		for (int i = 0; i < depot.getMAXSIZE(); i++) { // check if client's timestamp is older than replica's
-			if(request.getTimestamp(i) > depot.getGlobalTimestamp()[i]){
-				sendData = false;
-			}
-		}
+		VectorClock timestamp = toTimestamp(request.getTimestamp());
+		ByteString nextPageToken = ByteString.EMPTY;
+		ReadView view = depot.getReadView(); // every read of the request uses this snapshot
+		boolean sendData = isUpToDate(timestamp, view);
 
 		if (sendData){
-			observations = processObservations(resultObservations, maxResults);
+			try {
+				long frag = MacAddress.parseFragment(fragMac, lastBits);
+				int fragLength = MacAddress.fragmentLength(fragMac, lastBits);
+
+				// maxTotal needs every MAC to pick the newest, so its replies are not paged
+				if (request.getPageSize() > 0 && request.getMaxTotal() <= 0) {
+					ObservationCursor cursor = openCursor(depot.getMatchingMacs(frag, fragLength, lastBits),
+							maxResults, request.getPageToken(), view);
+					if (cursor != null) {
+						view = cursor.getView(); // the view of the first page
+						observations = processObservations(cursor.next(request.getPageSize()));
+						nextPageToken = toPageToken(cursor);
+					}
+				} else if (maxResults == 1) { // track reads the latest sighting of each MAC
+					observations = processObservations(
+							depot.getLatestObservationByMac(frag, fragLength, lastBits, request.getMaxTotal(), view));
+				} else {
+					observations = processObservations(depot.getObservationByMac(frag, fragLength, lastBits,
+							maxResults, request.getMaxTotal(), view)); // already sorted
+				}
+			} catch (MacException e) {
+				System.out.println(e.getMessage());
+			}
 		}
 
 		if (observations.size() > 0) {
 			Depot.searchMatchReply.Builder builder = Depot.searchMatchReply.newBuilder();
-			builder.addAllObservations(observations);
-			for (int i = 0; i < depot.getMAXSIZE(); i++) {
-				builder.addTimestamp(depot.getGlobalTimestamp()[i]);
-			}
+			builder.addAllObservations(observations).setNextPageToken(nextPageToken);
+			builder.setTimestamp(toClock(view.getTimestamp()));
 
 			reply = builder.build();
 		}
@@ -158,42 +254,377 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 		responseObserver.onCompleted();
 	}
 
+	@Override
+	public void searchStream(Depot.searchRequest request, StreamObserver<Depot.searchChunk> responseObserver) {
+		int maxResults = request.getMaxResults();
+		int maxTotal = request.getMaxTotal();
+		List<Long> macs = new ArrayList<Long>();
+		ReadView view = depot.getReadView(); // the whole stream reads this snapshot
+
+		if (!isUpToDate(toTimestamp(request.getTimestamp()), view)) {
+			sendStreamError(responseObserver);
+			return;
+		}
+
+		try {
+			macs.add(MacAddress.parse(request.getMac()));
+		} catch (MacException e) {
+			sendStreamError(responseObserver);
+			return;
+		}
+
+		// a single MAC, so the global limit is also a limit per MAC
+		if (maxTotal > 0 && (maxResults <= 0 || maxTotal < maxResults)) {
+			maxResults = maxTotal;
+		}
+		streamObservations(new SearchStreamer(responseObserver, new ObservationCursor(depot, macs, maxResults, view)),
+				view);
+	}
+
+	@Override
+	public void searchMatchStream(Depot.searchMatchRequest request,
+			StreamObserver<Depot.searchChunk> responseObserver) {
+		String fragMac = request.getFragMac();
+		int maxResults = request.getMaxResults();
+		int maxTotal = request.getMaxTotal();
+		boolean lastBits = request.getLastBits();
+		long frag;
+		int fragLength;
+		ReadView view = depot.getReadView(); // the whole stream reads this snapshot
+
+		if (!isUpToDate(toTimestamp(request.getTimestamp()), view)) {
+			sendStreamError(responseObserver);
+			return;
+		}
+
+		try {
+			frag = MacAddress.parseFragment(fragMac, lastBits);
+			fragLength = MacAddress.fragmentLength(fragMac, lastBits);
+		} catch (MacException e) {
+			sendStreamError(responseObserver);
+			return;
+		}
+
+		if (maxResults == 1) { // track results are small, one per MAC
+			streamObservations(new SearchStreamer(responseObserver,
+					depot.getLatestObservationByMac(frag, fragLength, lastBits, maxTotal, view)), view);
+		} else if (maxTotal > 0) { // bounded by maxTotal
+			streamObservations(new SearchStreamer(responseObserver,
+					depot.getObservationByMac(frag, fragLength, lastBits, maxResults, maxTotal, view)), view);
+		} else { // read from the indexes as the client consumes the stream
+			List<Long> macs = depot.getMatchingMacs(frag, fragLength, lastBits);
+			streamObservations(
+					new SearchStreamer(responseObserver, new ObservationCursor(depot, macs, maxResults, view)),
+					view);
+		}
+	}
+
+	@Override
+	public void batchSearch(Depot.batchSearchRequest request,
+			StreamObserver<Depot.batchSearchReply> responseObserver) {
+		Depot.batchSearchReply.Builder builder = Depot.batchSearchReply.newBuilder();
+		List<SearchQuery> queries = new ArrayList<SearchQuery>();
+		String[] errors = new String[request.getItemsCount()]; // null for valid items
+		ReadView view = depot.getReadView(); // every query of the batch uses this snapshot
+
+		if (!isUpToDate(toTimestamp(request.getTimestamp()), view)) {
+			responseObserver.onNext(builder.setError("No observations found.").build());
+			responseObserver.onCompleted();
+			return;
+		}
+
+		for (int i = 0; i < request.getItemsCount(); i++) {
+			try {
+				queries.add(toSearchQuery(request.getItems(i)));
+			} catch (MacException e) {
+				errors[i] = "Invalid MAC address.";
+			}
+		}
+
+		List<List<Observation>> results = depot.searchBatch(queries, view);
+		Iterator<List<Observation>> iter = results.iterator();
+
+		for (int i = 0; i < request.getItemsCount(); i++) {
+			Depot.batchResult.Builder result = Depot.batchResult.newBuilder();
+
+			if (errors[i] != null) {
+				result.setError(errors[i]);
+			} else {
+				List<Observation> observations = iter.next();
+				if (observations.isEmpty()) {
+					result.setError("No observations found.");
+				} else {
+					result.addAllObservations(processObservations(observations));
+				}
+			}
+			builder.addResults(result);
+		}
+		builder.setTimestamp(toClock(view.getTimestamp()));
+
+		responseObserver.onNext(builder.build());
+		responseObserver.onCompleted();
+	}
+
 	/**
-	 * Auxiliary method for processing observations to grpc types
+	 * Auxiliary method for converting an item of a batch search, an item with a
+	 * complete MAC is searched like in search and the others like in searchMatch
+	 * 
+	 * @param item MAC or fragment with its limits
+	 * @return SearchQuery
+	 * @throws MacException if the MAC or fragment is not valid
 	 */
-	protected ArrayList<Depot.observ> processObservations(List<Observation> observs, int maxResults) {
-		List<Observation> resultObservations = observs;
-		ArrayList<Depot.observ> observations = new ArrayList<Depot.observ>();
+	private SearchQuery toSearchQuery(Depot.batchItem item) throws MacException {
+		String mac = item.getMac();
 
+		if (mac.length() == 3 * MacAddress.BYTES - 1) {
+			return new SearchQuery(MacAddress.parse(mac), MacAddress.DIGITS, false, item.getMaxResults(),
+					item.getMaxTotal());
+		}
+		return new SearchQuery(MacAddress.parseFragment(mac, item.getLastBits()),
+				MacAddress.fragmentLength(mac, item.getLastBits()), item.getLastBits(), item.getMaxResults(),
+				item.getMaxTotal());
+	}
 
-		List<String> seenMacs = new ArrayList<String>();
+	/**
+	 * Creates the cursor of a paged search positioned where the previous page
+	 * stopped, so earlier pages are not read again. Every page reads the view
+	 * of the first one, so observations added between pages do not move the
+	 * position.
+	 * 
+	 * @param macs       sorted MACs of the search
+	 * @param maxResults most recent observations per MAC
+	 * @param pageToken  nextPageToken of the previous page, empty for the first
+	 * @param view       latest view, the one of the first page
+	 * @return ObservationCursor or null if the token is not valid or comes from a
+	 *         view this replica does not have
+	 */
+	private ObservationCursor openCursor(List<Long> macs, int maxResults, ByteString pageToken, ReadView view) {
+		if (pageToken.isEmpty()) {
+			return new ObservationCursor(depot, macs, maxResults, view);
+		}
+		try {
+			Depot.pageToken token = Depot.pageToken.parseFrom(pageToken);
+			ReadView first = new ReadView(token.getVisible(), toTimestamp(token.getTimestamp()));
+			if (first.getVisible() > view.getVisible() || !isUpToDate(first.getTimestamp(), view)) {
+				return null; // e.g. from another replica or from before a clear
+			}
+			ObservationCursor cursor = new ObservationCursor(depot, macs, maxResults, first);
+			cursor.seek(token.getMac(), token.getTime(), token.getSkip(), token.getTaken());
+			return cursor;
+		} catch (InvalidProtocolBufferException e) {
+			System.out.println("Invalid page token.");
+			return null;
+		}
+	}
 
-		for (int i = 0; i < resultObservations.size(); i++) {
-			Observation obv = resultObservations.get(i);
-			// the most recent per mac - it is already sorted
-			if (maxResults == 1 && seenMacs.contains(resultObservations.get(i).getMacAddress()) == false) {
-				seenMacs.add(obv.getMacAddress());
-				Depot.observ newObservation = Depot.observ.newBuilder().setMac(obv.getMacAddress())
-						.setTimedate(obv.getTimeDateToString()).setSentry(obv.getSentryName()).setLat(obv.getLat())
-						.setLon(obv.getLon()).build();
-				observations.add(newObservation);
+	/**
+	 * @param cursor cursor of a paged search after reading a page
+	 * @return token of the next page, empty if there is nothing left to read
+	 */
+	private ByteString toPageToken(ObservationCursor cursor) {
+		if (!cursor.hasNext()) {
+			return ByteString.EMPTY;
+		}
+		return Depot.pageToken.newBuilder().setMac(cursor.getMac()).setTime(cursor.getTime())
+				.setSkip(cursor.getSkip()).setTaken(cursor.getTaken()).setVisible(cursor.getView().getVisible())
+				.setTimestamp(toClock(cursor.getView().getTimestamp())).build().toByteString();
+	}
+
+	/**
+	 * Sends the header of a search stream and starts sending its observations
+	 * 
+	 * @param streamer
+	 * @param view     snapshot read by the stream
+	 */
+	private void streamObservations(SearchStreamer streamer, ReadView view) {
+		Depot.searchChunk.Builder header = Depot.searchChunk.newBuilder();
+		header.setTimestamp(toClock(view.getTimestamp()));
+		streamer.start(header.build());
+	}
+
+	/**
+	 * Ends a search stream with a header that only has the error
+	 * 
+	 * @param responseObserver
+	 */
+	private void sendStreamError(StreamObserver<Depot.searchChunk> responseObserver) {
+		responseObserver.onNext(Depot.searchChunk.newBuilder().setError("No observations found.").build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Sends observations to a search stream in chunks of STREAM_CHUNK_SIZE. A
+	 * chunk is only read and sent while the client is ready to receive it, the
+	 * rest is sent by gRPC's onReady callback.
+	 */
+	private class SearchStreamer implements Runnable {
+		private final ServerCallStreamObserver<Depot.searchChunk> observer;
+		private final ObservationCursor cursor; // null when the observations are already known
+		private final List<Observation> observations;
+		private int position = 0;
+		private boolean done = false;
+
+		SearchStreamer(StreamObserver<Depot.searchChunk> responseObserver, ObservationCursor cursor) {
+			this.observer = (ServerCallStreamObserver<Depot.searchChunk>) responseObserver;
+			this.cursor = cursor;
+			this.observations = null;
+		}
+
+		SearchStreamer(StreamObserver<Depot.searchChunk> responseObserver, List<Observation> observations) {
+			this.observer = (ServerCallStreamObserver<Depot.searchChunk>) responseObserver;
+			this.cursor = null;
+			this.observations = observations;
+		}
+
+		/**
+		 * @param header first message of the stream
+		 */
+		void start(Depot.searchChunk header) {
+			observer.setOnCancelHandler(new Runnable() {
+				@Override
+				public void run() {
+					cancel();
+				}
+			});
+			observer.setOnReadyHandler(this);
+			observer.onNext(header);
+			run();
+		}
 
-			} else if (maxResults == -1) {
-				Depot.observ newObservation = Depot.observ.newBuilder().setMac(obv.getMacAddress())
-						.setTimedate(obv.getTimeDateToString()).setSentry(obv.getSentryName()).setLat(obv.getLat())
-						.setLon(obv.getLon()).build();
-				observations.add(newObservation);
+		private synchronized void cancel() {
+			done = true;
+		}
+
+		@Override
+		public synchronized void run() {
+			while (!done && observer.isReady()) {
+				List<Observation> chunk = nextChunk();
+
+				if (chunk.isEmpty()) {
+					done = true;
+					observer.onCompleted();
+				} else {
+					observer.onNext(Depot.searchChunk.newBuilder().addAllObservations(processObservations(chunk))
+							.build());
+				}
+			}
+		}
+
+		private List<Observation> nextChunk() {
+			if (cursor != null) {
+				return cursor.next(STREAM_CHUNK_SIZE);
 			}
+			int end = Math.min(position + STREAM_CHUNK_SIZE, observations.size());
+			List<Observation> chunk = observations.subList(position, end);
+			position = end;
+			return chunk;
+		}
+	}
+
+	/**
+	 * Checks if a view has every update the client has already seen
+	 * 
+	 * @param timestamp client's timestamp
+	 * @param view      snapshot that would answer the client
+	 * @return true if the client's timestamp is not newer than the view's
+	 */
+	protected boolean isUpToDate(VectorClock timestamp, ReadView view) {
+		return !timestamp.isAheadOf(view.getTimestamp());
+	}
+
+	/**
+	 * Auxiliary method for sending a timestamp in a reply, only the replicas
+	 * with a version are sent
+	 * 
+	 * @param timestamp
+	 * @return Depot.vectorClock
+	 */
+	protected Depot.vectorClock toClock(VectorClock timestamp) {
+		Depot.vectorClock.Builder builder = Depot.vectorClock.newBuilder();
+
+		for (int i = 0; i < timestamp.size(); i++) {
+			builder.addReplicas(timestamp.getReplica(i)).addVersions(timestamp.getVersion(i));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Auxiliary method for converting a received timestamp, replicas that are
+	 * not in it are considered to be at version 0
+	 * 
+	 * @param clock timestamp received in a request
+	 * @return VectorClock
+	 */
+	protected VectorClock toTimestamp(Depot.vectorClock clock) {
+		int[] replicas = new int[clock.getReplicasCount()];
+		int[] versions = new int[clock.getVersionsCount()];
+
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = clock.getReplicas(i);
+		}
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = clock.getVersions(i);
+		}
+		return VectorClock.of(replicas, versions);
+	}
+
+	/**
+	 * Auxiliary method for processing observations to grpc types, the limits of
+	 * the request are already applied by the depot
+	 */
+	protected ArrayList<Depot.observ> processObservations(List<Observation> observs) {
+		ArrayList<Depot.observ> observations = new ArrayList<Depot.observ>(observs.size());
+
+		for (Observation obv : observs) {
+			observations.add(toObserv(obv));
 		}
 		return observations;
 	}
 
+	/**
+	 * Auxiliary method for converting an observation to its grpc type
+	 * 
+	 * @param obv observation
+	 * @return Depot.observ
+	 */
+	protected Depot.observ toObserv(Observation obv) {
+		SentryDictionary dictionary = depot.getSentryDictionary();
+		int sentry = obv.getSentryId();
+
+		return Depot.observ.newBuilder().setMac(MacAddress.toString(obv.getMacAddress()))
+				.setTimedate(Timedate.format(obv.getTimeDate())).setSentry(dictionary.getName(sentry))
+				.setLat(dictionary.getLat(sentry)).setLon(dictionary.getLon(sentry)).build();
+	}
+
+	/**
+	 * Pretty print function for converting an observation to a string
+	 * 
+	 * @param obv observation
+	 * @return string e.g. MAC,Time,Sentry,Lat,Long
+	 */
+	protected String prettyPrint(Observation obv) {
+		SentryDictionary dictionary = depot.getSentryDictionary();
+		int sentry = obv.getSentryId();
+
+		return MacAddress.toString(obv.getMacAddress()) + "," + Timedate.format(obv.getTimeDate()) + ","
+				+ dictionary.getName(sentry) + "," + Float.toString(dictionary.getLat(sentry)) + ","
+				+ Float.toString(dictionary.getLon(sentry));
+	}
+
 	@Override 
 	public void ctrlPing(Depot.ctrlPingRequest request, StreamObserver<Depot.ctrlPingReply> responseObserver) {
 		Builder builder = Depot.ctrlPingReply.newBuilder();
 		builder.setStatus(true);
 		builder.addAllSentries(depot.getSentryList());
-		builder.addAllObservations(depot.getObservationsToString());
+		builder.putAllMetrics(depot.getMetrics());
+		builder.putAllMetrics(peerChannels.getMetrics());
+		builder.putMetrics("catchup.active", (long) catchUps.size());
+		if (gossipScheduler != null) {
+			builder.putAllMetrics(gossipScheduler.getMetrics());
+		}
+		for (Observation obv : depot.getObservationsCopy(depot.getReadView())) {
+			builder.addObservations(prettyPrint(obv));
+		}
 
 		responseObserver.onNext(builder.build());
 		responseObserver.onCompleted();
@@ -223,7 +654,12 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 		int observsCount = request.getObservationsCount();
 		boolean status = true;
 
-		depot.clearServer(); // Initially clears server
+		try {
+			depot.clearServer(); // Initially clears server
+		} catch (IOException e) {
+			System.out.println("Failed to clear server.");
+			status = false;
+		}
 
 		// Loops for getting initial sentries and observations
 		for (int i = 0; i < sentriesCount; i++) {
@@ -244,9 +680,9 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 		}
 		for (Depot.observ observation : observs) {
 			try {
-				java.util.Date timedate = depot.parseTimedate(observation.getTimedate());
-				depot.addObservation(observation.getMac(), timedate, observation.getSentry(), observation.getLat(),
-						observation.getLon());
+				long timedate = Timedate.parse(observation.getTimedate());
+				depot.addObservation(MacAddress.parse(observation.getMac()), timedate, observation.getSentry(),
+						observation.getLat(), observation.getLon());
 
 			} catch (Exception e) { // Can receive observation exception or parse exception
 				System.out.println(e.getMessage());
@@ -262,107 +698,716 @@ public class DepotServiceImpl extends DepotServiceGrpc.DepotServiceImplBase {
 	@Override
 	public void gossip(Depot.gossipRequest request, StreamObserver<Depot.gossipReply> responseObserver) {
 		System.out.println("Received Gossip Request");
-		int diff = request.getTimestamp(depot.getReplica() - 1) - depot.getGlobalTimestamp()[depot.getReplica() - 1];
+		if (GOSSIP_GZIP) { // only used if the sender accepts gzip
+			((ServerCallStreamObserver<Depot.gossipReply>) responseObserver).setCompression("gzip");
+		}
+		VectorClock timestamp = toTimestamp(request.getTimestamp()); // sender's global timestamp
+		int seen = timestamp.get(depot.getReplica()); // sender's version of this replica
+		if (request.getReplica() > 0) { // the sender has every update up to its versions
+			depot.acknowledge(request.getReplica(), timestamp);
+		}
+		if (gossipScheduler != null && timestamp.isAheadOf(depot.getGlobalTimestamp())) { // ask it back soon
+			gossipScheduler.peerAhead(request.getReplica());
+		}
+		int version = depot.getGossipVersion(); // the versions after it may not be in the log yet
+		int diff = seen - version;
+		Depot.gossipReply.Builder builder;
 		
 		if (diff >= 0 ) { 
-			responseObserver.onNext(Depot.gossipReply.newBuilder().setHasdata(false).build());
-			responseObserver.onCompleted();
+			builder = Depot.gossipReply.newBuilder().setHasdata(false);
 		
 		} else {
 			
-			if(depot.getGlobalTimestamp()[depot.getReplica() - 1] == 1) { //This replica has no updates for a starting replica
-				responseObserver.onNext(Depot.gossipReply.newBuilder().setHasdata(true)
-						.setVersion(depot.getGlobalVersion())
-						.setReplica(depot.getReplica())
-						.addAllObs(new ArrayList<Depot.observ>())
-						.build());
-				responseObserver.onCompleted();
+			if(version == 1) { //This replica has no updates for a starting replica
+				builder = Depot.gossipReply.newBuilder().setHasdata(true)
+						.setVersion(version)
+						.setReplica(depot.getReplica());
 			} else {
 				
 				boolean initialSync = false;
-				if(request.getTimestamp(depot.getReplica() - 1) == 0) {
+				if(seen == 0) {
 					initialSync = true;
 				}
 				
 				diff = Math.abs(diff);
 
-				ArrayList<Depot.observ> obsList = new ArrayList<Depot.observ>();
+				int from = seen + (initialSync == false ? 1 : 2);
+				int to = depot.getLastContiguous(from, seen + diff); // a missing version ends the reply
 
-				while (diff > (initialSync == false ? 0 : 1)) {
-					
-					Iterator<Observation> tmp = depot.getObsFromLogVersion(request.getTimestamp(depot.getReplica() - 1) + diff).iterator();
-					System.out.println("Sending these observations (version" + depot.getGlobalVersion() + "):"); //debug
-				
-					while (tmp.hasNext()) {
-						Observation tmpObs = tmp.next();
-						System.out.println(tmpObs.prettyPrint()); //debug
-						obsList.add(Depot.observ.newBuilder().setMac(tmpObs.getMacAddress()).setLat(tmpObs.getLat())
-							.setLon(tmpObs.getLon()).setSentry(tmpObs.getSentryName())
-							.setTimedate(tmpObs.getTimeDateToString()).build());
-					}	
-					diff--;
-					
+				if (needsCatchUp(from, to)) { // too much for one message
+					builder = Depot.gossipReply.newBuilder().setHasdata(false).setCatchUp(true);
+				} else {
+					// compacted versions are skipped, every known replica had them
+					List<UpdateLog.Entry> updates = depot.getLogRange(from, to);
+					builder = Depot.gossipReply.newBuilder().setHasdata(true).setReplica(depot.getReplica())
+							.setVersion(Math.max(to, 1));
+					for (UpdateLog.Entry update : updates) {
+						builder.addUpdates(encode(update));
+					}
+				}
+				int compacted = depot.getCompacted();
+				if (from <= compacted) { // the log no longer has them, the sender has to reconcile
+					builder.setCompacted(compacted);
+				}
+			}
+		}
+
+		addRelayed(builder, request.getReplica(), timestamp); // and the other replicas' updates it lacks
+		responseObserver.onNext(builder.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * Adds the updates of other replicas that this replica has and the sender of
+	 * a gossip request lacks, up to CATCHUP_CHUNK observations. An update then
+	 * reaches every replica even if some of them never talk to its origin.
+	 * 
+	 * @param builder   reply to the sender
+	 * @param sender    replica that sent the request
+	 * @param timestamp sender's global timestamp
+	 */
+	private void addRelayed(Depot.gossipReply.Builder builder, int sender, VectorClock timestamp) {
+		int budget = CATCHUP_CHUNK;
+
+		for (int origin : depot.getRelayOrigins()) {
+			if (origin == sender || budget <= 0) {
+				continue;
+			}
+			List<UpdateLog.Entry> updates = depot.getRelayRange(origin, timestamp.get(origin), budget);
+			if (!updates.isEmpty()) {
+				Depot.relayedUpdates.Builder relayed = Depot.relayedUpdates.newBuilder().setOrigin(origin)
+						.setVersion(updates.get(updates.size() - 1).getVersion());
+				for (UpdateLog.Entry update : updates) {
+					relayed.addUpdates(encode(update));
+					budget -= update.getObservations().size();
+				}
+				builder.addRelayed(relayed);
+			}
+		}
+	}
+
+	/**
+	 * @param from first version the sender is missing
+	 * @param to   last version the sender is missing
+	 * @return true if the versions do not fit in a single CATCHUP_CHUNK
+	 */
+	private boolean needsCatchUp(int from, int to) {
+		if (to - from >= CATCHUP_CHUNK) {
+			return true;
+		}
+		int count = 0;
+		for (UpdateLog.Entry update : depot.getLogRange(from, to)) {
+			count += update.getObservations().size();
+		}
+		return count > CATCHUP_CHUNK;
+	}
+
+	@Override
+	public StreamObserver<Depot.gossipRequest> catchUp(StreamObserver<Depot.gossipReply> responseObserver) {
+		System.out.println("Received Catch-up Request");
+		return new CatchUpSender(responseObserver);
+	}
+
+	/**
+	 * Sends the updates a replica is missing in chunks of up to CATCHUP_CHUNK
+	 * versions and observations. At most CATCHUP_WINDOW chunks are sent before
+	 * the replica acknowledges them, and only while gRPC is ready to send more,
+	 * so neither side holds more than a few chunks.
+	 */
+	private class CatchUpSender implements StreamObserver<Depot.gossipRequest>, Runnable {
+		private final ServerCallStreamObserver<Depot.gossipReply> observer;
+		private final Deque<Integer> unacknowledged = new ArrayDeque<Integer>(); // last version of each chunk sent
+		private int next = -1; // first version not sent yet, -1 until the first request
+		private int last; // last version of the catch-up
+		private boolean done = false;
+
+		CatchUpSender(StreamObserver<Depot.gossipReply> responseObserver) {
+			this.observer = (ServerCallStreamObserver<Depot.gossipReply>) responseObserver;
+			if (GOSSIP_GZIP) {
+				observer.setCompression("gzip");
+			}
+			observer.setOnCancelHandler(new Runnable() {
+				@Override
+				public void run() {
+					cancel();
 				}
-				responseObserver.onNext(Depot.gossipReply.newBuilder().setHasdata(true).addAllObs(obsList)
-					.setReplica(depot.getReplica()).setVersion(depot.getGlobalVersion()).build());
-				responseObserver.onCompleted();
+			});
+			observer.setOnReadyHandler(this);
+		}
+
+		private synchronized void cancel() {
+			done = true;
+		}
+
+		@Override
+		public synchronized void onNext(Depot.gossipRequest request) {
+			VectorClock timestamp = toTimestamp(request.getTimestamp());
+			int seen = timestamp.get(depot.getReplica());
+			if (request.getReplica() > 0) {
+				depot.acknowledge(request.getReplica(), timestamp);
+			}
+
+			if (next < 0) { // same range as gossip
+				next = seen + (seen == 0 ? 2 : 1);
+				last = depot.getGossipVersion();
+			}
+			while (!unacknowledged.isEmpty() && unacknowledged.peek() <= seen) {
+				unacknowledged.poll();
 			}
+			run();
 		}
 
+		@Override
+		public synchronized void run() {
+			if (next < 0) {
+				return; // ready before the first request
+			}
+			while (!done && next <= last && unacknowledged.size() < CATCHUP_WINDOW && observer.isReady()) {
+				int end = depot.getLastContiguous(next, Math.min(last, next + CATCHUP_CHUNK - 1));
+				if (end < next) { // a missing version, the catch-up ends before it
+					last = next - 1;
+					break;
+				}
+				List<UpdateLog.Entry> chunk = new ArrayList<UpdateLog.Entry>();
+				int count = 0;
+
+				for (UpdateLog.Entry update : depot.getLogRange(next, end)) {
+					if (count > 0 && count + update.getObservations().size() > CATCHUP_CHUNK) {
+						end = update.getVersion() - 1; // the rest goes in the next chunk
+						break;
+					}
+					chunk.add(update);
+					count += update.getObservations().size();
+				}
+
+				Depot.gossipReply.Builder reply = Depot.gossipReply.newBuilder().setHasdata(true)
+						.setReplica(depot.getReplica()).setVersion(end);
+				for (UpdateLog.Entry update : chunk) {
+					reply.addUpdates(encode(update));
+				}
+				observer.onNext(reply.build());
+				unacknowledged.add(end);
+				next = end + 1;
+			}
+			if (!done && next > last && unacknowledged.isEmpty()) { // every chunk was applied
+				done = true;
+				observer.onCompleted();
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			System.out.println("Catch-up failed: " + Status.fromThrowable(t).getCode());
+			cancel();
+		}
+
+		@Override
+		public synchronized void onCompleted() {
+			if (!done) { // the replica gave up before the end
+				done = true;
+				observer.onCompleted();
+			}
+		}
 	}
-	
-	
-	
+
+	@Override
+	public void merkle(Depot.merkleRequest request, StreamObserver<Depot.merkleReply> responseObserver) {
+		Depot.merkleReply.Builder builder = Depot.merkleReply.newBuilder();
+
+		if (request.getLevel() == 1) {
+			MerkleTree.Cut<long[]> cut = depot.getMerkleRanges();
+			for (long hash : cut.getValue()) {
+				builder.addHashes(hash);
+			}
+			builder.setTimestamp(toClock(cut.getTimestamp()));
+
+		} else if (request.getLevel() == 2) {
+			MerkleTree.Cut<Map<Integer, Map<Long, Long>>> cut = depot.getMerkleLeaves(request.getRangesList());
+			for (Map.Entry<Integer, Map<Long, Long>> range : cut.getValue().entrySet()) {
+				for (Map.Entry<Long, Long> leaf : range.getValue().entrySet()) {
+					builder.addRanges(range.getKey()).addBuckets(leaf.getKey()).addHashes(leaf.getValue());
+				}
+			}
+			builder.setTimestamp(toClock(cut.getTimestamp()));
+
+		} else if (request.getLevel() == 3 && request.getRangesCount() == request.getBucketsCount()) {
+			MerkleTree.Cut<List<Observation>> cut = depot.getMerkleObservations(toLeaves(request.getRangesList(),
+					request.getBucketsList()), depot.getReadView());
+			builder.setObservations(addCompact(Depot.compactBatch.newBuilder(), cut.getValue()))
+					.setTimestamp(toClock(cut.getTimestamp()));
+
+		} else {
+			responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("Invalid merkle request").asRuntimeException());
+			return;
+		}
+		responseObserver.onNext(builder.build());
+		responseObserver.onCompleted();
+	}
+
+	/**
+	 * @param ranges  range of each leaf
+	 * @param buckets time bucket of each leaf
+	 * @return range --> time buckets
+	 */
+	private Map<Integer, Set<Long>> toLeaves(List<Integer> ranges, List<Long> buckets) {
+		Map<Integer, Set<Long>> leaves = new TreeMap<Integer, Set<Long>>();
+		for (int i = 0; i < ranges.size(); i++) {
+			if (!leaves.containsKey(ranges.get(i))) {
+				leaves.put(ranges.get(i), new TreeSet<Long>());
+			}
+			leaves.get(ranges.get(i)).add(buckets.get(i));
+		}
+		return leaves;
+	}
+
+	/**
+	 * Anti-entropy with a peer: compares the hash trees level by level and adds
+	 * the observations of the leaves where the peer has some that this replica
+	 * does not. Only done while the peer has no update this replica has not
+	 * applied, so nothing that is added can still arrive by gossip. Finds
+	 * observations whose updates were lost or compacted before reaching this
+	 * replica, at a cost that depends on the leaves that differ.
+	 * 
+	 * @param peer replica number
+	 * @return number of observations added, -1 if the peer still has updates
+	 *         that gossip has to bring first
+	 * @throws IOException if the observations can not be logged
+	 */
+	protected int reconcile(int peer) throws IOException {
+		MerkleTree.Cut<long[]> ranges = depot.getMerkleRanges();
+		Depot.merkleReply reply = merkleStub(peer).merkle(Depot.merkleRequest.newBuilder().setLevel(1).build());
+		if (toTimestamp(reply.getTimestamp()).isAheadOf(ranges.getTimestamp())) {
+			return -1;
+		}
+
+		List<Integer> differing = new ArrayList<Integer>();
+		for (int i = 0; i < Math.min(reply.getHashesCount(), MerkleTree.RANGES); i++) {
+			if (reply.getHashes(i) != ranges.getValue()[i]) {
+				differing.add(i);
+			}
+		}
+		if (differing.isEmpty()) {
+			return 0;
+		}
+
+		MerkleTree.Cut<Map<Integer, Map<Long, Long>>> leaves = depot.getMerkleLeaves(differing);
+		reply = merkleStub(peer).merkle(Depot.merkleRequest.newBuilder().setLevel(2).addAllRanges(differing).build());
+		List<Integer> wantedRanges = new ArrayList<Integer>();
+		List<Long> wantedBuckets = new ArrayList<Long>();
+
+		for (int i = 0; i < reply.getHashesCount(); i++) {
+			Map<Long, Long> local = leaves.getValue().get(reply.getRanges(i));
+			Long hash = local == null ? null : local.get(reply.getBuckets(i));
+			if (hash == null || hash != reply.getHashes(i)) {
+				wantedRanges.add(reply.getRanges(i));
+				wantedBuckets.add(reply.getBuckets(i));
+			}
+		}
+
+		int added = 0;
+		ReadView view = depot.getReadView(); // every leaf of this replica is read from this snapshot
+		for (int from = 0; from < wantedRanges.size(); from += MERKLE_LEAVES) {
+			int to = Math.min(from + MERKLE_LEAVES, wantedRanges.size());
+			reply = merkleStub(peer).merkle(Depot.merkleRequest.newBuilder().setLevel(3)
+					.addAllRanges(wantedRanges.subList(from, to)).addAllBuckets(wantedBuckets.subList(from, to)).build());
+			MerkleTree.Cut<List<Observation>> local = depot.getMerkleObservations(toLeaves(
+					wantedRanges.subList(from, to), wantedBuckets.subList(from, to)), view);
+			if (toTimestamp(reply.getTimestamp()).isAheadOf(local.getTimestamp())) {
+				break;
+			}
+
+			Set<Observation> known = new TreeSet<Observation>(SAME_OBSERVATION);
+			known.addAll(local.getValue());
+			Set<Observation> missing = new TreeSet<Observation>(SAME_OBSERVATION); // each one once
+			for (Observation obv : fromCompactBatch(reply.getObservations())) {
+				if (!known.contains(obv)) {
+					missing.add(obv);
+				}
+			}
+			if (!missing.isEmpty()) {
+				depot.addObservations(new ArrayList<Observation>(missing));
+				added += missing.size();
+			}
+		}
+		System.out.println("Anti-entropy with replica " + peer + " added " + added + " observations");
+		return added;
+	}
+
+	/**
+	 * @param peer replica number
+	 * @return stub for one anti-entropy call to the peer
+	 */
+	private DepotServiceGrpc.DepotServiceBlockingStub merkleStub(int peer) {
+		DepotServiceGrpc.DepotServiceBlockingStub stub = DepotServiceGrpc.newBlockingStub(peerChannels.get(peer))
+				.withDeadlineAfter(GOSSIP_DEADLINE, TimeUnit.MILLISECONDS);
+		return GOSSIP_GZIP ? stub.withCompression("gzip") : stub;
+	}
+
 	/**
-	 * Method for sending gossip updates to other replicas
+	 * Auxiliary method for the encoded form of an update, a compact batch with
+	 * its own sentries, built the first time the update is sent and kept in the
+	 * log. Later replies add it without building it again.
 	 * 
-	 * @param zk in order to access other replicas' paths
+	 * @param update update of the local or a relay log
+	 * @return ByteString with a Depot.compactBatch of the update
+	 */
+	private ByteString encode(UpdateLog.Entry update) {
+		ByteString encoded = update.getEncoded();
+
+		if (encoded == null) {
+			Depot.compactBatch.Builder builder = Depot.compactBatch.newBuilder().addVersions(update.getVersion())
+					.addSizes(update.getObservations().size());
+			encoded = addCompact(builder, update.getObservations()).build().toByteString();
+			update.setEncoded(encoded);
+		}
+		return encoded;
+	}
+
+	/**
+	 * Auxiliary method for the compact form of observations, each sentry is
+	 * written once and the times as differences
+	 * 
+	 * @param builder      batch the observations are added to
+	 * @param observations observations to send
+	 * @return the builder
+	 */
+	private Depot.compactBatch.Builder addCompact(Depot.compactBatch.Builder builder, List<Observation> observations) {
+		SentryDictionary dictionary = depot.getSentryDictionary();
+		Map<Integer, Integer> sentryIds = new HashMap<Integer, Integer>(); // dictionary id --> position in the batch
+		long previous = 0;
+
+		for (Observation obv : observations) {
+			Integer id = sentryIds.get(obv.getSentryId());
+			if (id == null) {
+				id = sentryIds.size();
+				sentryIds.put(obv.getSentryId(), id);
+				builder.addSentries(Depot.sentry.newBuilder().setName(dictionary.getName(obv.getSentryId()))
+						.setLat(dictionary.getLat(obv.getSentryId())).setLon(dictionary.getLon(obv.getSentryId())));
+			}
+			builder.addMacs(obv.getMacAddress()).addTimes(obv.getTimeDate() - previous).addSentryIds(id);
+			previous = obv.getTimeDate();
+		}
+		return builder;
+	}
+
+	/**
+	 * Auxiliary method for reading a compact batch, its sentries are looked up
+	 * in the dictionary once
+	 * 
+	 * @param batch received batch
+	 * @return observations of the batch, in order
+	 * @throws InvalidProtocolBufferException if the batch is malformed
+	 */
+	private List<Observation> fromCompactBatch(Depot.compactBatch batch) throws InvalidProtocolBufferException {
+		int count = batch.getMacsCount();
+		if (batch.getTimesCount() != count || batch.getSentryIdsCount() != count) {
+			throw new InvalidProtocolBufferException("Invalid compact batch: " + count + " MAC addresses, "
+					+ batch.getTimesCount() + " times and " + batch.getSentryIdsCount() + " sentry ids");
+		}
+
+		SentryDictionary dictionary = depot.getSentryDictionary();
+		int[] sentryIds = new int[batch.getSentriesCount()]; // position in the batch --> dictionary id
+		for (int i = 0; i < sentryIds.length; i++) {
+			Depot.sentry sentry = batch.getSentries(i);
+			sentryIds[i] = dictionary.getId(sentry.getName(), sentry.getLat(), sentry.getLon());
+		}
+
+		List<Observation> observations = new ArrayList<Observation>(count);
+		long time = 0;
+		for (int i = 0; i < count; i++) {
+			int sentry = batch.getSentryIds(i);
+			if (sentry < 0 || sentry >= sentryIds.length) {
+				throw new InvalidProtocolBufferException("Invalid compact batch: observation " + i
+						+ " refers to sentry " + sentry + " of " + sentryIds.length);
+			}
+			time += batch.getTimes(i);
+			observations.add(new Observation(batch.getMacs(i), time, sentryIds[sentry]));
+		}
+		return observations;
+	}
+
+	/**
+	 * Auxiliary method for reading the updates of a compact batch
+	 * 
+	 * @param batch   received batch, with the version and size of each update
+	 * @param updates version --> observations of the update, the batch's
+	 *                updates are added to it
+	 * @throws InvalidProtocolBufferException if the batch is malformed
+	 */
+	private void addUpdates(Depot.compactBatch batch, SortedMap<Integer, List<Observation>> updates)
+			throws InvalidProtocolBufferException {
+		List<Observation> observations = fromCompactBatch(batch);
+		if (batch.getVersionsCount() != batch.getSizesCount()) {
+			throw new InvalidProtocolBufferException("Invalid compact batch: " + batch.getVersionsCount()
+					+ " versions and " + batch.getSizesCount() + " sizes");
+		}
+		int position = 0;
+
+		for (int i = 0; i < batch.getVersionsCount(); i++) {
+			int size = batch.getSizes(i);
+			if (size < 0 || size > observations.size() - position) {
+				throw new InvalidProtocolBufferException("Invalid compact batch: version " + batch.getVersions(i)
+						+ " has " + size + " of the " + (observations.size() - position) + " observations left");
+			}
+			updates.put(batch.getVersions(i),
+					new ArrayList<Observation>(observations.subList(position, position + size)));
+			position += size;
+		}
+		if (position != observations.size()) {
+			throw new InvalidProtocolBufferException("Invalid compact batch: " + (observations.size() - position)
+					+ " observations are not of any version");
+		}
+	}
+
+	/**
+	 * Auxiliary method for reading the updates of a reply
+	 * 
+	 * @param encoded batch of each update
+	 * @return version --> observations of the update
+	 * @throws InvalidProtocolBufferException if a batch is malformed
+	 */
+	private SortedMap<Integer, List<Observation>> toUpdates(List<ByteString> encoded)
+			throws InvalidProtocolBufferException {
+		SortedMap<Integer, List<Observation>> updates = new TreeMap<Integer, List<Observation>>();
+
+		for (ByteString update : encoded) {
+			addUpdates(Depot.compactBatch.parseFrom(update), updates);
+		}
+		return updates;
+	}
+
+	/**
+	 * Method for sending gossip updates to other replicas. A round asks the
+	 * given peers and random others, up to GOSSIP_FANOUT in all, in parallel,
+	 * each call with its own deadline, and returns once every one of them
+	 * answered or failed. A slow or dead peer only costs its own call.
+	 * 
+	 * @param zk      in order to access other replicas' paths
+	 * @param include peers asked in this round whatever the fanout, e.g. the
+	 *                ones known to have updates this replica lacks
+	 * @return true if the round changed this replica
 	 * @throws ZKNamingException
-	 * @throws ParseException
+	 * @throws InterruptedException if interrupted while waiting for the peers
 	 */
-	protected void sendGossip(ZKNaming zk, String path) throws ZKNamingException, ParseException {
+	protected boolean sendGossip(ZKNaming zk, String path, Collection<Integer> include)
+			throws ZKNamingException, InterruptedException {
 		System.out.println("Doing Gossip...\n");
+		VectorClock before = depot.getGlobalTimestamp();
+		int added = 0; // by anti-entropy
 
 		Collection<ZKRecord> depotLst = zk.listRecords(path);
 
 		depotLst.remove(zk.lookup(path + "/" + depot.getReplica())); 
 
-		Iterator<ZKRecord> iter = depotLst.iterator();
+		Map<Integer, String> uris = new TreeMap<Integer, String>();
+		for (ZKRecord record : depotLst) {
+			uris.put(Integer.parseInt(record.getPath().substring(record.getPath().lastIndexOf('/') + 1)),
+					record.getURI());
+		}
+		peerChannels.update(uris); // channels are kept between rounds, removed replicas are closed
+		depot.setPeers(uris.keySet()); // the log is only compacted once all of them have acknowledged
 
-		while (iter.hasNext()) {
-			ZKRecord record = iter.next();
+		List<Integer> selected = new ArrayList<Integer>();
+		for (int peer : include) {
+			if (uris.containsKey(peer) && !selected.contains(peer)) {
+				selected.add(peer);
+			}
+		}
+		List<Integer> others = new ArrayList<Integer>(uris.keySet());
+		others.removeAll(selected);
+		Collections.shuffle(others, random);
+		selected.addAll(others.subList(0, Math.max(0, Math.min(GOSSIP_FANOUT - selected.size(), others.size()))));
 
-			ManagedChannel channel = ManagedChannelBuilder.forTarget(record.getURI()).usePlaintext().build();
+		Depot.gossipRequest request = Depot.gossipRequest.newBuilder().setReplica(depot.getReplica())
+				.setTimestamp(toClock(depot.getGlobalTimestamp())).build();
+		final CountDownLatch pending = new CountDownLatch(selected.size());
 
-			DepotServiceGrpc.DepotServiceBlockingStub stub = DepotServiceGrpc.newBlockingStub(channel);
+		for (final int peer : selected) {
+			final long start = System.nanoTime();
 
-			Depot.gossipRequest request = Depot.gossipRequest.newBuilder()
-					.addAllTimestamp(depot.getGlobalTimestampAsCollection())
-						.build();
+			gossipStub(peer, GOSSIP_DEADLINE).gossip(request, new StreamObserver<Depot.gossipReply>() {
+						@Override
+						public void onNext(Depot.gossipReply reply) {
+							try {
+								applyGossip(reply);
+								if (reply.getCompacted() > 0) {
+									System.out.println("Replica " + peer + " compacted versions up to "
+											+ reply.getCompacted() + " before this replica had them");
+									peerChannels.recordCompactionGap(peer);
+									compactionGaps.add(peer);
+								}
+								if (reply.getCatchUp()) { // runs on its own, the round does not wait for it
+									if (catchUps.add(peer)) {
+										new CatchUpReceiver(peer).start();
+									}
+								} else {
+									peerChannels.recordCall(peer, System.nanoTime() - start);
+								}
+							} catch (IOException e) {
+								System.out.println("Failed to apply gossip from replica " + peer + ": " + e.getMessage());
+								peerChannels.recordFailure(peer);
+							}
+						}
 
-			Depot.gossipReply reply = stub.gossip(request);
-			
-			channel.shutdownNow();
+						@Override
+						public void onError(Throwable t) { // e.g. the peer is down or missed the deadline
+							System.out.println("Gossip with replica " + peer + " failed: " + Status.fromThrowable(t).getCode());
+							peerChannels.recordFailure(peer);
+							pending.countDown();
+						}
 
-			if (reply.getHasdata()) {
-				
-				if(reply.getObsCount() == 0) { //Initial case, where vector needs to be put to 1
-					depot.updateGlobalTimestamp(reply.getReplica(), reply.getVersion());
-				}
-				
-				else {
-					for (int j = 0; j < reply.getObsCount(); j++) {
-				
-						Depot.observ tmp = reply.getObs(j);
-						depot.addObservation(tmp.getMac(), depot.parseTimedate(tmp.getTimedate()), tmp.getSentry(),
-								tmp.getLat(), tmp.getLon());
-						
-						
-					}
-					depot.updateGlobalTimestamp(reply.getReplica(), reply.getVersion());
+						@Override
+						public void onCompleted() {
+							pending.countDown();
+						}
+					});
+		}
+		pending.await();
+
+		for (int peer : compactionGaps) { // once the peer has nothing left for gossip to bring
+			if (!uris.containsKey(peer)) {
+				compactionGaps.remove(peer);
+				continue;
+			}
+			if (catchUps.contains(peer)) { // the catch-up may still bring the versions
+				continue;
+			}
+			try {
+				int result = reconcile(peer);
+				if (result >= 0) {
+					compactionGaps.remove(peer);
+					added += result;
 				}
+			} catch (StatusRuntimeException | IOException e) {
+				System.out.println("Anti-entropy with replica " + peer + " failed: " + e.getMessage());
+			}
+		}
+		if (ANTI_ENTROPY_ROUNDS > 0 && ++rounds % ANTI_ENTROPY_ROUNDS == 0 && !selected.isEmpty()) {
+			int peer = selected.get(random.nextInt(selected.size())); // the included peers come first
+			try {
+				added += Math.max(0, reconcile(peer));
+			} catch (StatusRuntimeException | IOException e) {
+				System.out.println("Anti-entropy with replica " + peer + " failed: " + e.getMessage());
+			}
+		}
+		return added > 0 || !depot.getGlobalTimestamp().equals(before);
+	}
+
+	/**
+	 * Starts the gossip rounds with the other replicas, see GossipScheduler
+	 * 
+	 * @param zk   naming server
+	 * @param path path of the replicas in the naming server
+	 */
+	protected void startGossip(ZKNaming zk, String path) {
+		gossipScheduler = new GossipScheduler(this, zk, path);
+		gossipScheduler.start();
+	}
+
+	/**
+	 * @param peer     replica number
+	 * @param deadline milliseconds the call may take
+	 * @return stub for a gossip call to the peer
+	 */
+	private DepotServiceGrpc.DepotServiceStub gossipStub(int peer, long deadline) {
+		DepotServiceGrpc.DepotServiceStub stub = DepotServiceGrpc.newStub(peerChannels.get(peer))
+				.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS);
+		return GOSSIP_GZIP ? stub.withCompression("gzip") : stub;
+	}
+
+	/**
+	 * Receives the chunks of a catch-up from a peer. Each chunk is applied and
+	 * then acknowledged with the new timestamp, so a catch-up that fails or
+	 * runs out of time keeps what it got and the next round goes on from there.
+	 * The rounds go on while it runs, the peer stays in catchUps until it ends.
+	 */
+	private class CatchUpReceiver implements StreamObserver<Depot.gossipReply> {
+		private final int peer;
+		private final long start = System.nanoTime();
+		private StreamObserver<Depot.gossipRequest> requests;
+		private boolean done = false;
+
+		CatchUpReceiver(int peer) {
+			this.peer = peer;
+		}
+
+		void start() {
+			try {
+				requests = gossipStub(peer, CATCHUP_DEADLINE).catchUp(this);
+				requests.onNext(acknowledgement()); // the peer waits for it before sending
+			} catch (RuntimeException e) {
+				System.out.println("Catch-up with replica " + peer + " failed: " + e.getMessage());
+				finish(false);
+			}
+		}
+
+		private Depot.gossipRequest acknowledgement() {
+			return Depot.gossipRequest.newBuilder().setReplica(depot.getReplica())
+					.setTimestamp(toClock(depot.getGlobalTimestamp())).build();
+		}
+
+		@Override
+		public void onNext(Depot.gossipReply chunk) {
+			try {
+				applyGossip(chunk);
+				requests.onNext(acknowledgement());
+			} catch (IOException e) {
+				System.out.println("Failed to apply catch-up from replica " + peer + ": " + e.getMessage());
+				requests.onError(Status.CANCELLED.withDescription(e.getMessage()).asRuntimeException());
+				finish(false);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			System.out.println("Catch-up with replica " + peer + " failed: " + Status.fromThrowable(t).getCode());
+			finish(false);
+		}
+
+		@Override
+		public void onCompleted() { // the call is closed, nothing more is sent
+			finish(true);
+		}
+
+		private synchronized void finish(boolean completed) {
+			if (done) {
+				return;
 			}
+			done = true;
+			if (completed) {
+				peerChannels.recordCall(peer, System.nanoTime() - start);
+			} else {
+				peerChannels.recordFailure(peer);
+			}
+			catchUps.remove(peer); // the next round may start another one
+		}
+	}
+
+	/**
+	 * Adds the updates of a gossip reply to the depot
+	 * 
+	 * @param reply reply of a peer
+	 * @throws IOException if the received updates can not be logged
+	 */
+	private void applyGossip(Depot.gossipReply reply) throws IOException {
+		for (Depot.relayedUpdates relayed : reply.getRelayedList()) {
+			depot.applyUpdates(relayed.getOrigin(), relayed.getVersion(), toUpdates(relayed.getUpdatesList()));
+		}
+
+		if (reply.getHasdata()) { // no updates for a starting replica still put its version to 1
+			depot.applyUpdates(reply.getReplica(), reply.getVersion(), toUpdates(reply.getUpdatesList()));
+		}
+	}
+
+	/**
+	 * Stops the gossip and closes the channels to the other replicas, called when
+	 * the server stops
+	 */
+	protected void shutdown() {
+		if (gossipScheduler != null) {
+			gossipScheduler.shutdown();
 		}
+		peerChannels.shutdown();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,233 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Part of the depot's observations, with the indexes of the MAC addresses that
+ * hash to it. Shards share nothing, so reports and searches of MACs in
+ * different shards never touch the same structures. A shard loaded from a
+ * snapshot only builds its fragment index when a fragment is first searched.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class DepotShard {
+
+    private Map<Long, ObservationHistory> macIndex; // MAC --> observations of that MAC ordered by time
+    private MacFragmentIndex fragmentIndex; // distinct MACs of this shard
+    private volatile boolean indexed = true; // false while the fragment index misses loaded MACs
+    private Map<Long, Sighting> lastSeen; // MAC --> most recent observation
+
+    // Constructor
+
+    /**
+     * Empty shard constructor
+     */
+    protected DepotShard() {
+        macIndex = new ConcurrentHashMap<Long, ObservationHistory>();
+        fragmentIndex = new MacFragmentIndex();
+        lastSeen = new ConcurrentHashMap<Long, Sighting>();
+    }
+
+    // Getters
+
+    /**
+     * @param mac 48-bit MAC address of this shard
+     * @return history of the MAC or null if it was never observed
+     */
+    protected ObservationHistory getHistory(long mac) {
+        return macIndex.get(mac);
+    }
+
+    /**
+     * @param mac  48-bit MAC address of this shard
+     * @param view observations the reader can see
+     * @return most recent observation of the MAC or null if it was never observed
+     */
+    protected Observation getLatest(long mac, ReadView view) {
+        Sighting latest = lastSeen.get(mac);
+
+        if (latest == null) {
+            return null;
+        }
+        if (view.isVisible(latest.arrival)) {
+            return latest.observation;
+        }
+        // the latest sighting is newer than the view, look for it in the history
+        List<Observation> newest = macIndex.get(mac).getNewestFirst(1, view);
+        return newest.isEmpty() ? null : newest.get(0);
+    }
+
+    /**
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @param lastBits   true if the fragment is the end of the MAC
+     * @return sorted list of the MACs of this shard that match the fragment
+     */
+    protected List<Long> getMatchingMacs(long fragMac, int fragLength, boolean lastBits) {
+        if (!indexed) {
+            buildFragmentIndex();
+        }
+        return lastBits ? fragmentIndex.matchSuffix(fragMac, fragLength) : fragmentIndex.matchPrefix(fragMac, fragLength);
+    }
+
+    /**
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @param lastBits   true if the fragment is the end of the MAC
+     * @return histories of the matching MACs, sorted by MAC address
+     */
+    protected List<ObservationHistory> getMatchingHistories(long fragMac, int fragLength, boolean lastBits) {
+        List<ObservationHistory> histories = new ArrayList<ObservationHistory>();
+
+        for (long mac : getMatchingMacs(fragMac, fragLength, lastBits)) {
+            histories.add(macIndex.get(mac));
+        }
+        return histories;
+    }
+
+    /**
+     * @param fragMac    MAC fragment digits, see MacAddress.parseFragment
+     * @param fragLength number of hex digits in fragMac
+     * @param lastBits   true if the fragment is the end of the MAC
+     * @param view       observations the reader can see
+     * @return most recent observation of each matching MAC, sorted by MAC address
+     */
+    protected List<Observation> getLatestByMac(long fragMac, int fragLength, boolean lastBits, ReadView view) {
+        List<Observation> result = new ArrayList<Observation>();
+
+        for (long mac : getMatchingMacs(fragMac, fragLength, lastBits)) {
+            Observation latest = getLatest(mac, view);
+            if (latest != null) {
+                result.add(latest);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Only snapshots and full listings need the arrival order, so it is
+     * rebuilt from the histories instead of being kept for every observation
+     *
+     * @param view observations the reader can see
+     * @return arrival numbers and observations of this shard, in arrival order
+     */
+    protected List<Arrival> getArrivals(ReadView view) {
+        List<Arrival> result = new ArrayList<Arrival>();
+
+        for (ObservationHistory history : macIndex.values()) {
+            history.addArrivals(result, view);
+        }
+
+        Collections.sort(result, new Comparator<Arrival>() {
+            @Override
+            public int compare(Arrival one, Arrival two) {
+                return Long.compare(one.number, two.number);
+            }
+        });
+        return result;
+    }
+
+    // Modifiers
+
+    /**
+     * Adds an observation to the history of its MAC address
+     *
+     * @param obs    observation of a MAC of this shard
+     * @param number arrival number of the observation in the depot
+     */
+    protected void add(Observation obs, long number) {
+        add(obs, number, true);
+    }
+
+    /**
+     * Adds an observation read from a snapshot, the fragment index is rebuilt
+     * on its first use
+     *
+     * @param obs    observation of a MAC of this shard
+     * @param number arrival number of the observation in the depot
+     */
+    protected void load(Observation obs, long number) {
+        indexed = false;
+        add(obs, number, false);
+    }
+
+    private void add(Observation obs, long number, boolean index) {
+        long mac = obs.getMacAddress();
+        ObservationHistory history = macIndex.get(mac);
+
+        if (history == null) { // only the update that creates the history adds the MAC
+            ObservationHistory created = new ObservationHistory();
+            history = macIndex.putIfAbsent(mac, created);
+            if (history == null) {
+                history = created;
+                if (index) {
+                    fragmentIndex.add(mac);
+                }
+            }
+        }
+        history.add(obs, number);
+
+        Sighting sighting = new Sighting(number, obs);
+        Sighting latest = lastSeen.putIfAbsent(mac, sighting);
+        while (latest != null && latest.observation.getTimeDate() <= obs.getTimeDate()
+                && !lastSeen.replace(mac, latest, sighting)) {
+            latest = lastSeen.get(mac);
+        }
+    }
+
+    /**
+     * Adds every MAC of the shard to the fragment index
+     */
+    private synchronized void buildFragmentIndex() {
+        if (!indexed) {
+            for (long mac : macIndex.keySet()) {
+                fragmentIndex.add(mac);
+            }
+            indexed = true;
+        }
+    }
+
+    /**
+     * Removes every observation from the shard
+     */
+    protected void clear() {
+        macIndex.clear();
+        fragmentIndex.clear();
+        lastSeen.clear();
+        indexed = true;
+    }
+
+    /**
+     * Observation with the order in which it was added to the depot
+     */
+    protected static final class Arrival {
+        protected final long number;
+        protected final Observation observation;
+
+        protected Arrival(long number, Observation observation) {
+            this.number = number;
+            this.observation = observation;
+        }
+    }
+
+    /**
+     * Most recent observation of a MAC with its arrival number
+     */
+    private static final class Sighting {
+        private final long arrival;
+        private final Observation observation;
+
+        private Sighting(long arrival, Observation observation) {
+            this.arrival = arrival;
+            this.observation = observation;
+        }
+    }
+}
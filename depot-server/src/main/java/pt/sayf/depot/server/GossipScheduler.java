@@ -0,0 +1,180 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+
+/**
+ * Decides when the gossip rounds of a replica run. A round runs MIN_INTERVAL
+ * after the previous one while updates are arriving, and every round that
+ * changes nothing doubles the wait up to MAX_INTERVAL. Reports that add
+ * VERSIONS_THRESHOLD versions or OBSERVATIONS_THRESHOLD observations that were
+ * not gossiped yet start the next round early, once MIN_INTERVAL has passed,
+ * and so does a gossip request from a peer that has updates this replica
+ * lacks, since gossip only brings updates to the replica that asks for them.
+ * That peer is then always asked in the next round.
+ * Each wait is changed by up to JITTER of itself so the replicas do not all
+ * gossip at the same time.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class GossipScheduler implements Runnable {
+
+    // milliseconds between rounds while updates arrive, -Ddepot.gossip.min overrides it
+    static final long MIN_INTERVAL = Long.getLong("depot.gossip.min", 1000);
+    // milliseconds between rounds of an idle replica, -Ddepot.gossip.max overrides it
+    static final long MAX_INTERVAL = Long.getLong("depot.gossip.max", 30000);
+    // local versions that start a round early, -Ddepot.gossip.versions overrides it
+    static final int VERSIONS_THRESHOLD = Integer.getInteger("depot.gossip.versions", 100);
+    // local observations that start a round early, -Ddepot.gossip.observations overrides it
+    static final long OBSERVATIONS_THRESHOLD = Long.getLong("depot.gossip.observations", 5000);
+    private static final double JITTER = 0.2; // fraction of the wait
+
+    private DepotServiceImpl service;
+    private ZKNaming zk;
+    private String path;
+    private Random random = new Random();
+    private Thread thread;
+
+    private long interval = MIN_INTERVAL; // wait before the next round, guarded by this
+    private int versions = 0; // local versions since the last round started, guarded by this
+    private long observations = 0; // their observations, guarded by this
+    private Set<Integer> peersAhead = new TreeSet<Integer>(); // peers with updates this replica lacks, guarded by this
+    private long lastRound = 0; // milliseconds the last round took
+
+    // Constructor
+
+    /**
+     * @param service replica that gossips
+     * @param zk      naming server with the other replicas
+     * @param path    path of the replicas in the naming server
+     */
+    protected GossipScheduler(DepotServiceImpl service, ZKNaming zk, String path) {
+        this.service = service;
+        this.zk = zk;
+        this.path = path;
+    }
+
+    // Getters
+
+    /**
+     * @return metrics of the scheduler by name, e.g. gossip.interval.ms
+     */
+    protected synchronized Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<String, Long>();
+        metrics.put("gossip.interval.ms", interval);
+        metrics.put("gossip.unsent.versions", (long) versions);
+        metrics.put("gossip.unsent.observations", observations);
+        metrics.put("gossip.round.ms", lastRound);
+        return metrics;
+    }
+
+    // Modifiers
+
+    /**
+     * Starts the rounds in a thread of their own
+     */
+    protected void start() {
+        thread = new Thread(this, "depot-gossip");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the rounds, a round in progress is interrupted
+     */
+    protected void shutdown() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Counts a local update, wakes the scheduler if there is enough to gossip
+     *
+     * @param count observations of the update
+     */
+    protected synchronized void reported(int count) {
+        versions++;
+        observations += count;
+        if (isFull()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wakes the scheduler because a peer has updates this replica lacks
+     *
+     * @param peer replica number of the peer, asked in the next round
+     */
+    protected synchronized void peerAhead(int peer) {
+        peersAhead.add(peer);
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                List<Integer> ahead = new ArrayList<Integer>();
+                boolean changed = waitForRound(ahead); // local updates
+
+                long start = System.currentTimeMillis();
+                try {
+                    changed |= service.sendGossip(zk, path, ahead);
+                } catch (ZKNamingException | RuntimeException e) { // the next round tries again
+                    System.err.printf("Caught exception while in gossip: %s\n", e);
+                }
+
+                synchronized (this) {
+                    lastRound = System.currentTimeMillis() - start;
+                    interval = changed ? MIN_INTERVAL : Math.min(MAX_INTERVAL, interval * 2);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Waits for the interval, with jitter, or until enough was reported or a
+     * peer is ahead
+     *
+     * @param ahead the peers that were ahead are added to it
+     * @return true if there were local updates since the last round
+     * @throws InterruptedException
+     */
+    private synchronized boolean waitForRound(Collection<Integer> ahead) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long earliest = now + MIN_INTERVAL;
+        long end = now + Math.max(MIN_INTERVAL,
+                (long) (interval * (1 + JITTER * (2 * random.nextDouble() - 1))));
+
+        while (now < end && !(isFull() && now >= earliest)) {
+            wait(isFull() ? earliest - now : end - now);
+            now = System.currentTimeMillis();
+        }
+
+        boolean changed = versions > 0;
+        versions = 0; // the updates from now on are for the next round
+        observations = 0;
+        ahead.addAll(peersAhead);
+        peersAhead.clear();
+        return changed;
+    }
+
+    private boolean isFull() {
+        return !peersAhead.isEmpty() || versions >= VERSIONS_THRESHOLD || observations >= OBSERVATIONS_THRESHOLD;
+    }
+}
@@ -0,0 +1,127 @@
+package pt.sayf.depot.server;
+
+import pt.sayf.depot.server.exceptions.MacException;
+
+/**
+ * Conversions between MAC address strings and their 48-bit representation.
+ * Fragments are counted in hexadecimal digits, like the string match they
+ * replace, so "AA:B" is the prefix of every MAC starting with AA:B0 to AA:BF.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public final class MacAddress {
+
+    protected static final int BYTES = 6;
+    protected static final int DIGITS = 2 * BYTES; // hexadecimal digits of a MAC address
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * @param mac complete MAC address e.g. AA:BB:CC:DD:EE:FF
+     * @return MAC address packed in the 48 lower bits of a long
+     * @throws MacException if mac is not a complete MAC address
+     */
+    protected static long parse(String mac) throws MacException {
+        if (mac.length() != 3 * BYTES - 1 || fragmentLength(mac, false) != DIGITS) {
+            throw new MacException();
+        }
+        return parseFragment(mac, false);
+    }
+
+    /**
+     * @param fragMac  MAC address fragment e.g. AA:BB:, AA:B or :EE:FF
+     * @param lastBits true if the fragment is the end of the MAC
+     * @return number of hexadecimal digits in the fragment
+     * @throws MacException if fragMac is not a part of a MAC address that can
+     *                      start (or end, with lastBits) one
+     */
+    protected static int fragmentLength(String fragMac, boolean lastBits) throws MacException {
+        String digits = strip(fragMac);
+        String[] groups = digits.split(":", -1);
+        int partial = lastBits ? 0 : groups.length - 1; // only the group at the open end can have one digit
+        int length = 0;
+
+        if (digits.isEmpty() || groups.length > BYTES) {
+            throw new MacException();
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i].length() == 1 && i == partial) {
+                if (lastBits ? fragMac.startsWith(":") : fragMac.endsWith(":")) {
+                    throw new MacException("MAC fragment " + fragMac + " has a digit missing before ':'");
+                }
+            } else if (groups[i].length() != 2) {
+                throw new MacException(lastBits ? "MAC suffix " + fragMac + " does not end a MAC address"
+                        : "MAC prefix " + fragMac + " does not start a MAC address");
+            }
+            length += groups[i].length();
+        }
+        return length;
+    }
+
+    /**
+     * @param fragMac  MAC address fragment e.g. AA:BB:, AA:B or :EE:FF
+     * @param lastBits true if the fragment is the end of the MAC
+     * @return fragment digits packed in the lower bits of a long, 4 bits each
+     * @throws MacException if fragMac is not a part of a MAC address that can
+     *                      start (or end, with lastBits) one
+     */
+    protected static long parseFragment(String fragMac, boolean lastBits) throws MacException {
+        String digits = strip(fragMac);
+        long value = 0;
+
+        fragmentLength(fragMac, lastBits);
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) != ':') {
+                value = (value << 4) | hexDigit(digits.charAt(i));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param mac MAC address packed in a long
+     * @return MAC address string in upper case e.g. AA:BB:CC:DD:EE:FF
+     */
+    protected static String toString(long mac) {
+        char[] str = new char[3 * BYTES - 1];
+
+        for (int i = 0; i < BYTES; i++) {
+            int b = (int) (mac >>> (8 * (BYTES - 1 - i))) & 0xFF;
+            if (i > 0) {
+                str[3 * i - 1] = ':';
+            }
+            str[3 * i] = HEX[b >>> 4];
+            str[3 * i + 1] = HEX[b & 0xF];
+        }
+        return new String(str);
+    }
+
+    /**
+     * @param fragMac MAC address fragment
+     * @return fragment without the leading and trailing ':'
+     */
+    private static String strip(String fragMac) {
+        int begin = fragMac.startsWith(":") ? 1 : 0;
+        int end = fragMac.endsWith(":") ? fragMac.length() - 1 : fragMac.length();
+        return begin < end ? fragMac.substring(begin, end) : "";
+    }
+
+    /**
+     * @param c hexadecimal character
+     * @return value of c
+     * @throws MacException if c is not a hexadecimal character
+     */
+    private static long hexDigit(char c) throws MacException {
+        int digit = Character.digit(c, 16);
+        if (digit < 0) {
+            throw new MacException();
+        }
+        return digit;
+    }
+}
@@ -0,0 +1,102 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the distinct MAC addresses known by the depot, used for finding the
+ * MACs that start or end with a given fragment. The sets are concurrent, so
+ * MACs can be added while other threads are matching fragments.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class MacFragmentIndex {
+
+    private NavigableSet<Long> macs; // sorted MAC addresses
+    private NavigableSet<Long> reversedMacs; // sorted MAC addresses with their hex digits reversed
+
+    // Constructor
+
+    /**
+     * Empty index constructor
+     */
+    protected MacFragmentIndex() {
+        macs = new ConcurrentSkipListSet<Long>();
+        reversedMacs = new ConcurrentSkipListSet<Long>();
+    }
+
+    // Getters
+
+    /**
+     * @param fragMac    first hex digits of a MAC address
+     * @param fragLength number of hex digits in fragMac
+     * @return sorted list of the MACs that start with fragMac
+     */
+    protected List<Long> matchPrefix(long fragMac, int fragLength) {
+        return new ArrayList<Long>(prefixRange(macs, fragMac, fragLength));
+    }
+
+    /**
+     * @param fragMac    last hex digits of a MAC address
+     * @param fragLength number of hex digits in fragMac
+     * @return sorted list of the MACs that end with fragMac
+     */
+    protected List<Long> matchSuffix(long fragMac, int fragLength) {
+        List<Long> result = new ArrayList<Long>();
+        // the reversed suffix is the beginning of the reversed MAC
+        long reversedFrag = reverse(fragMac) >>> (4 * (MacAddress.DIGITS - fragLength));
+
+        for (long reversed : prefixRange(reversedMacs, reversedFrag, fragLength)) {
+            result.add(reverse(reversed));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @param set        sorted set of MAC addresses
+     * @param fragMac    first hex digits of a MAC address
+     * @param fragLength number of hex digits in fragMac
+     * @return view of the MACs of the set that start with fragMac
+     */
+    private NavigableSet<Long> prefixRange(NavigableSet<Long> set, long fragMac, int fragLength) {
+        int freeBits = 4 * (MacAddress.DIGITS - fragLength);
+        long from = fragMac << freeBits;
+        long to = from + (1L << freeBits);
+        return set.subSet(from, true, to, false);
+    }
+
+    /**
+     * @param mac 48-bit MAC address
+     * @return mac with the order of its 12 hex digits reversed
+     */
+    private long reverse(long mac) {
+        long bytes = Long.reverseBytes(mac) >>> (8 * (Long.BYTES - MacAddress.BYTES));
+        return ((bytes & 0x0F0F0F0F0F0FL) << 4) | ((bytes >>> 4) & 0x0F0F0F0F0F0FL);
+    }
+
+    // Modifiers
+
+    /**
+     * @param mac MAC address to add to the index, repeated MACs are ignored
+     */
+    protected void add(long mac) {
+        if (macs.add(mac)) {
+            reversedMacs.add(reverse(mac));
+        }
+    }
+
+    /**
+     * Removes every MAC from the index
+     */
+    protected void clear() {
+        macs.clear();
+        reversedMacs.clear();
+    }
+}
@@ -0,0 +1,242 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the observations of the depot, used by anti-entropy to find
+ * where two replicas differ without comparing every observation. The
+ * observations are split into RANGES ranges by the first byte of the MAC and
+ * each range into time buckets of BUCKET milliseconds, the leaves. The hash of
+ * a leaf is the sum of the hashes of its observations and the hash of a range
+ * the sum of its leaves, so adding an observation changes one leaf and one
+ * range, and the same observations give the same hashes on every replica in
+ * any order. The tree only keeps the hashes: the observations of a leaf are
+ * those of its MACs in its time bucket.
+ *
+ * The sums are added to without locks. They are read while no update is
+ * being applied, see DepotBase.getMerkleRanges.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class MerkleTree {
+
+    static final int RANGES = 256; // MAC ranges, the first level of the tree
+    static final int RANGE_DIGITS = 2; // hex digits of the MAC that give its range
+    // milliseconds of a time bucket, -Ddepot.merkle.bucket overrides it, must be
+    // the same on every replica
+    static final long BUCKET = Long.getLong("depot.merkle.bucket", 3600000);
+
+    private AtomicLongArray rangeHashes; // range --> sum of the hashes of its leaves
+    private List<ConcurrentMap<Long, AtomicLong>> leaves; // range --> time bucket --> hash of the leaf
+    private volatile AtomicLongArray sentryHashes = new AtomicLongArray(0); // dictionary id --> sentry hash, 0 until
+                                                                           // the sentry is first hashed
+
+    // Constructor
+
+    /**
+     * Empty tree constructor
+     */
+    protected MerkleTree() {
+        rangeHashes = new AtomicLongArray(RANGES);
+        leaves = new ArrayList<ConcurrentMap<Long, AtomicLong>>(RANGES);
+        for (int i = 0; i < RANGES; i++) {
+            leaves.add(new ConcurrentHashMap<Long, AtomicLong>());
+        }
+    }
+
+    // Getters
+
+    /**
+     * @param mac 48-bit MAC address
+     * @return range of the MAC's observations, its first byte
+     */
+    protected static int rangeOf(long mac) {
+        return (int) (mac >>> 40);
+    }
+
+    /**
+     * @param time epoch milliseconds
+     * @return time bucket of an observation with that time
+     */
+    protected static long bucketOf(long time) {
+        return Math.floorDiv(time, BUCKET);
+    }
+
+    /**
+     * @param bucket time bucket
+     * @return first epoch millisecond of the bucket
+     */
+    protected static long bucketStart(long bucket) {
+        return bucket * BUCKET;
+    }
+
+    /**
+     * Hash of an observation, the sentry is hashed by name and coordinates since
+     * dictionary ids differ between replicas
+     *
+     * @param obs        observation
+     * @param dictionary dictionary of the observation's sentry id
+     * @return 64-bit hash
+     */
+    protected static long hash(Observation obs, SentryDictionary dictionary) {
+        return hash(obs, sentryHash(dictionary, obs.getSentryId()));
+    }
+
+    /**
+     * @param obs    observation
+     * @param sentry hash of the observation's sentry
+     * @return 64-bit hash
+     */
+    private static long hash(Observation obs, long sentry) {
+        long h = mix(obs.getMacAddress());
+        h = mix(h ^ obs.getTimeDate());
+        return mix(h ^ sentry);
+    }
+
+    /**
+     * @param dictionary dictionary of the sentry id
+     * @param sentry     dictionary id
+     * @return hash of the sentry's name and coordinates
+     */
+    private static long sentryHash(SentryDictionary dictionary, int sentry) {
+        long coords = ((long) Float.floatToIntBits(dictionary.getLat(sentry)) << 32)
+                | (Float.floatToIntBits(dictionary.getLon(sentry)) & 0xFFFFFFFFL);
+
+        return mix(mix(dictionary.getName(sentry).hashCode()) ^ coords);
+    }
+
+    /**
+     * @return hash of every range, by range
+     */
+    protected long[] getRangeHashes() {
+        long[] copy = new long[RANGES];
+
+        for (int i = 0; i < RANGES; i++) {
+            copy[i] = rangeHashes.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param range MAC range
+     * @return time bucket --> hash of the leaves of the range
+     */
+    protected Map<Long, Long> getLeafHashes(int range) {
+        Map<Long, Long> hashes = new TreeMap<Long, Long>();
+
+        for (Map.Entry<Long, AtomicLong> entry : leaves.get(range).entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().get());
+        }
+        return hashes;
+    }
+
+    // Modifiers
+
+    /**
+     * @param obs        observation added to the depot
+     * @param dictionary dictionary of the observation's sentry id
+     */
+    protected void add(Observation obs, SentryDictionary dictionary) {
+        int range = rangeOf(obs.getMacAddress());
+        long bucket = bucketOf(obs.getTimeDate());
+        long hash = hash(obs, getSentryHash(dictionary, obs.getSentryId()));
+
+        ConcurrentMap<Long, AtomicLong> rangeLeaves = leaves.get(range);
+        AtomicLong leaf = rangeLeaves.get(bucket);
+        if (leaf == null) {
+            rangeLeaves.putIfAbsent(bucket, new AtomicLong());
+            leaf = rangeLeaves.get(bucket);
+        }
+        leaf.addAndGet(hash);
+        rangeHashes.addAndGet(range, hash);
+    }
+
+    /**
+     * Empties the tree, the sentries are hashed again since the dictionary is
+     * new
+     */
+    protected void clear() {
+        for (int i = 0; i < RANGES; i++) {
+            leaves.get(i).clear();
+            rangeHashes.set(i, 0);
+        }
+        sentryHashes = new AtomicLongArray(0);
+    }
+
+    /**
+     * @param dictionary dictionary of the sentry id
+     * @param sentry     dictionary id
+     * @return hash of the sentry, only computed the first time
+     */
+    private long getSentryHash(SentryDictionary dictionary, int sentry) {
+        AtomicLongArray known = sentryHashes;
+        long hash = sentry < known.length() ? known.get(sentry) : 0;
+
+        if (hash == 0) {
+            hash = sentryHash(dictionary, sentry);
+            synchronized (this) {
+                known = sentryHashes;
+                if (sentry >= known.length()) {
+                    AtomicLongArray grown = new AtomicLongArray(Math.max(sentry + 1, 2 * known.length()));
+                    for (int i = 0; i < known.length(); i++) {
+                        grown.set(i, known.get(i));
+                    }
+                    sentryHashes = grown;
+                    known = grown;
+                }
+                known.set(sentry, hash);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param h value
+     * @return h with its bits mixed, the finalizer of splitmix64
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Part of the tree read together with the timestamp of the observations it
+     * covers
+     *
+     * @param <T> part that was read
+     */
+    protected static final class Cut<T> {
+        private final VectorClock timestamp;
+        private final T value;
+
+        protected Cut(VectorClock timestamp, T value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        /**
+         * @return timestamp of the observations in the cut
+         */
+        protected VectorClock getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return part of the tree that was read
+         */
+        protected T getValue() {
+            return value;
+        }
+    }
+}
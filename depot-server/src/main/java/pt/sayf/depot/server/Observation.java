@@ -1,11 +1,10 @@
 package pt.sayf.depot.server;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 /**
- * Observation class for easier manipulation of observations
- * 
+ * Observation class for easier manipulation of observations. Observations are
+ * kept in a compact form, the conversion to and from the project's string
+ * formats is done by DepotServiceImpl
+ *
  * @author DanLopess - Daniel Lopes
  * @version 1.0.0
  *
@@ -13,112 +12,56 @@ import java.util.Date;
 
 public class Observation {
     // attributes
-    private String macAddress;
-    private Date timeDate;
-    private String sentry;
-    private float lat;
-    private float lon;
+    private final long macAddress; // 48-bit MAC address, see MacAddress
+    private final long timeDate; // epoch milliseconds
+    private final int sentry; // id in the depot's SentryDictionary
 
     // Constructor
 
     /**
      * Observation constructor
-     * 
-     * @param mac        - observed mac address
-     * @param timedate   of depot registration
-     * @param sentryName of the sentry that registered the observation
-     * @param lon        - location longitude
-     * @param lat        - location latitude
+     *
+     * @param mac      - observed mac address packed in a long
+     * @param timedate of depot registration in epoch milliseconds
+     * @param sentryId id of the sentry that registered the observation
      */
 
-    protected Observation(String mac, Date timedate, String sentryName, float latitude, float longitude) {
+    protected Observation(long mac, long timedate, int sentryId) {
         macAddress = mac;
         timeDate = timedate;
-        sentry = sentryName;
-        lat = latitude;
-        lon = longitude;
+        sentry = sentryId;
     }
 
     // Getters
 
     /**
      * Getter for the mac Address
-     * 
-     * @return string correspondent to the macAddress of this observation
+     *
+     * @return 48-bit mac address of this observation
      */
-    protected String getMacAddress() {
+    protected long getMacAddress() {
         return macAddress;
     }
 
     /**
      * Getter for the time date
-     * 
-     * @return timeDate
+     *
+     * @return timeDate in epoch milliseconds
      */
 
-    protected Date getTimeDate() {
+    protected long getTimeDate() {
         return timeDate;
     }
 
-    /*
-     * Getter for the time date in the project related format
-     * 
-     * @return - string timedate
-     */
-    protected String getTimeDateToString() {
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-        SimpleDateFormat formatter2 = new SimpleDateFormat("HH:mm:ss");
-        String date = formatter.format(timeDate);
-        String time = formatter2.format(timeDate);
-        return date + 'T' + time;
-    }
-
     /**
-     * Getter for the sentry name
-     * 
-     * @return sentry name
+     * Getter for the sentry id
+     *
+     * @return sentry id
      */
 
-    protected String getSentryName() {
+    protected int getSentryId() {
         return sentry;
     }
 
-    /*
-     * Getter for the latitude
-     * 
-     * @return latitude
-     */
-    protected float getLat() {
-        return lat;
-    }
-
-    /**
-     * Getter for the longitude
-     * 
-     * @return longitude
-     */
-    protected float getLon() {
-        return lon;
-    }
-
-    /**
-     * Getter for the float array that contains the coordenates
-     * 
-     * @return float[] that has lat and lon
-     */
-    protected float[] getCoords() {
-        float[] coords = { lat, lon };
-        return coords;
-    }
-
-    /**
-     * Pretty print function for converting observation to a string
-     * 
-     * @return string
-     */
-    protected String prettyPrint() {
-        return macAddress + "," + this.getTimeDateToString() + "," + sentry + "," + Float.toString(lat) + ","
-                + Float.toString(lon);
-    }
     // No Setters are needed
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Position inside the observations of a sorted list of MACs, used for reading a
+ * large search result in pieces. The position inside a MAC is kept as the time
+ * of the last observation read and how many observations with that time were
+ * read, so it stays valid while new observations are added. Every read uses
+ * the cursor's ReadView, so all the pieces come from the same snapshot.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class ObservationCursor {
+
+    private DepotBase depot;
+    private List<Long> macs; // sorted MACs to read
+    private int maxResults; // per MAC, 0 or negative for all
+    private ReadView view; // observations the cursor can see
+
+    private int macPos = 0; // MAC being read
+    private long time = Long.MAX_VALUE; // time of the last observation read
+    private int skip = 0; // observations read with that time
+    private int taken = 0; // observations read from the current MAC
+
+    // Constructor
+
+    /**
+     * @param depot      depot to read from
+     * @param macs       sorted list of 48-bit MAC addresses
+     * @param maxResults most recent observations per MAC, 0 or negative for all
+     * @param view       observations the cursor can see
+     */
+    protected ObservationCursor(DepotBase depot, List<Long> macs, int maxResults, ReadView view) {
+        this.depot = depot;
+        this.macs = macs;
+        this.maxResults = maxResults;
+        this.view = view;
+    }
+
+    // Getters
+
+    /**
+     * @return snapshot read by the cursor
+     */
+    protected ReadView getView() {
+        return view;
+    }
+
+    /**
+     * @return true if every MAC has been read
+     */
+    protected boolean isDone() {
+        return macPos >= macs.size();
+    }
+
+    /**
+     * Moves past the MACs that have nothing left to read
+     *
+     * @return true if there is at least one more observation to read
+     */
+    protected boolean hasNext() {
+        while (!isDone()) {
+            if ((maxResults <= 0 || taken < maxResults)
+                    && !depot.getObservationsByMac(macs.get(macPos), time, skip, 1, view).isEmpty()) {
+                return true;
+            }
+            nextMac();
+        }
+        return false;
+    }
+
+    /**
+     * @return MAC being read, only valid while the cursor is not done
+     */
+    protected long getMac() {
+        return macs.get(macPos);
+    }
+
+    /**
+     * @return time of the last observation read from the current MAC
+     */
+    protected long getTime() {
+        return time;
+    }
+
+    /**
+     * @return observations read from the current MAC with the last time
+     */
+    protected int getSkip() {
+        return skip;
+    }
+
+    /**
+     * @return observations read from the current MAC
+     */
+    protected int getTaken() {
+        return taken;
+    }
+
+    /**
+     * Reads the next observations, sorted by MAC address and most recent first
+     *
+     * @param max maximum number of observations to return
+     * @return List<Observation> empty only when the cursor is done
+     */
+    protected List<Observation> next(int max) {
+        List<Observation> result = new ArrayList<Observation>();
+
+        while (result.size() < max && !isDone()) {
+            int want = max - result.size();
+            if (maxResults > 0) {
+                want = Math.min(want, maxResults - taken);
+            }
+
+            List<Observation> page = want > 0
+                    ? depot.getObservationsByMac(macs.get(macPos), time, skip, want, view)
+                    : new ArrayList<Observation>();
+
+            if (page.isEmpty()) {
+                nextMac();
+            } else {
+                for (Observation obs : page) {
+                    if (obs.getTimeDate() == time) {
+                        skip++;
+                    } else {
+                        time = obs.getTimeDate();
+                        skip = 1;
+                    }
+                }
+                taken += page.size();
+                result.addAll(page);
+            }
+        }
+        return result;
+    }
+
+    // Modifiers
+
+    /**
+     * Moves the cursor to a position previously read with the getters. If the
+     * MAC is no longer in the list the cursor moves to the first MAC after it.
+     *
+     * @param mac   MAC being read
+     * @param time  time of the last observation read from that MAC
+     * @param skip  observations read from that MAC with that time
+     * @param taken observations read from that MAC
+     */
+    protected void seek(long mac, long time, int skip, int taken) {
+        int pos = Collections.binarySearch(macs, mac);
+
+        if (pos >= 0) {
+            this.macPos = pos;
+            this.time = time;
+            this.skip = skip;
+            this.taken = taken;
+        } else {
+            this.macPos = -pos - 1; // insertion point
+            this.time = Long.MAX_VALUE;
+            this.skip = 0;
+            this.taken = 0;
+        }
+    }
+
+    /**
+     * Moves the cursor to the beginning of the next MAC
+     */
+    private void nextMac() {
+        macPos++;
+        time = Long.MAX_VALUE;
+        skip = 0;
+        taken = 0;
+    }
+}
@@ -0,0 +1,307 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time ordered list with every observation of a single MAC address. Readers
+ * never lock: the observations are kept in chunks of up to CHUNK_SIZE
+ * published through a volatile reference. A new observation is written after
+ * the published size of the last chunk and only then published. One that is
+ * not the most recent goes into a copy of its chunk, split in two when it is
+ * full, so an insert copies at most one chunk and the list of chunks. Each
+ * observation keeps its arrival number, so a reader only sees the observations
+ * of its ReadView.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class ObservationHistory {
+
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int CHUNK_SIZE = 256; // most observations in a chunk
+
+    private volatile Entries entries; // older to most recent, written by one add at a time
+
+    // Constructor
+
+    /**
+     * Empty history constructor
+     */
+    protected ObservationHistory() {
+        entries = new Entries(new Chunk[0], new Chunk(new Observation[INITIAL_CAPACITY], new long[INITIAL_CAPACITY], 0),
+                0);
+    }
+
+    // Getters
+
+    /**
+     * @param max  maximum number of observations to return, 0 or negative for all
+     *             of them
+     * @param view observations the reader can see
+     * @return List<Observation> from the most recent to the oldest
+     */
+    protected List<Observation> getNewestFirst(int max, ReadView view) {
+        Entries current = entries;
+        List<Observation> result = new ArrayList<Observation>(max > 0 ? Math.min(max, current.size) : current.size);
+
+        for (int c = current.last(); c >= 0; c--) {
+            Chunk chunk = current.chunk(c);
+            for (int i = chunk.size - 1; i >= 0; i--) {
+                if (max > 0 && result.size() >= max) {
+                    return result;
+                }
+                if (view.isVisible(chunk.arrivals[i])) {
+                    result.add(chunk.observations[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the history from a given point, used for resuming a previous read
+     *
+     * @param beforeTime only observations with a time up to beforeTime are
+     *                   returned
+     * @param skip       number of observations with time equal to beforeTime
+     *                   that were already read
+     * @param max        maximum number of observations to return
+     * @param view       observations the reader can see
+     * @return List<Observation> from the most recent to the oldest
+     */
+    protected List<Observation> getNewestFirst(long beforeTime, int skip, int max, ReadView view) {
+        Entries current = entries;
+        List<Observation> result = new ArrayList<Observation>();
+
+        for (int c = current.last(); c >= 0 && result.size() < max; c--) {
+            Chunk chunk = current.chunk(c);
+            for (int i = chunk.upperBound(beforeTime) - 1; i >= 0 && result.size() < max; i--) {
+                Observation obs = chunk.observations[i];
+                if (!view.isVisible(chunk.arrivals[i])) {
+                    continue;
+                }
+                if (skip > 0 && obs.getTimeDate() == beforeTime) {
+                    skip--;
+                } else {
+                    result.add(obs);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param from first time, in epoch milliseconds
+     * @param to   last time, in epoch milliseconds
+     * @param view observations the reader can see
+     * @return List<Observation> with a time from from to to, from the oldest to
+     *         the most recent
+     */
+    protected List<Observation> getBetween(long from, long to, ReadView view) {
+        Entries current = entries;
+        List<Observation> result = new ArrayList<Observation>();
+
+        for (int c = 0; c <= current.last(); c++) {
+            Chunk chunk = current.chunk(c);
+            if (chunk.size == 0 || chunk.observations[chunk.size - 1].getTimeDate() < from) {
+                continue;
+            }
+            for (int i = chunk.upperBound(from - 1); i < chunk.size; i++) {
+                if (chunk.observations[i].getTimeDate() > to) {
+                    return result;
+                }
+                if (view.isVisible(chunk.arrivals[i])) {
+                    result.add(chunk.observations[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param result arrivals the observations of the history are added to
+     * @param view   observations the reader can see
+     */
+    protected void addArrivals(List<DepotShard.Arrival> result, ReadView view) {
+        Entries current = entries;
+
+        for (int c = 0; c <= current.last(); c++) {
+            Chunk chunk = current.chunk(c);
+            for (int i = 0; i < chunk.size; i++) {
+                if (view.isVisible(chunk.arrivals[i])) {
+                    result.add(new DepotShard.Arrival(chunk.arrivals[i], chunk.observations[i]));
+                }
+            }
+        }
+    }
+
+    // Modifiers
+
+    /**
+     * Inserts an observation keeping the history ordered by time. Observations
+     * usually arrive in time order, so the insertion point is searched from the
+     * end and an observation with the same time is kept after the older arrivals.
+     *
+     * @param obs     observation of this history's MAC address
+     * @param arrival arrival number of the observation in the depot
+     */
+    protected synchronized void add(Observation obs, long arrival) {
+        Entries current = entries;
+        long time = obs.getTimeDate();
+        int c = current.last();
+
+        while (c > 0 && current.chunk(c).observations[0].getTimeDate() > time) {
+            c--;
+        }
+        Chunk chunk = current.chunk(c);
+        int pos = chunk.upperBound(time);
+
+        if (c == current.last()) {
+            entries = addToLast(current, pos, obs, arrival);
+            return;
+        }
+
+        Chunk[] sealed;
+        if (chunk.size < CHUNK_SIZE) {
+            sealed = current.sealed.clone();
+            sealed[c] = chunk.insert(pos, obs, arrival, chunk.size + 1);
+        } else { // split the full chunk in two halves
+            Chunk full = chunk.insert(pos, obs, arrival, chunk.size + 1);
+            int half = full.size / 2;
+            sealed = new Chunk[current.sealed.length + 1];
+            System.arraycopy(current.sealed, 0, sealed, 0, c);
+            sealed[c] = full.slice(0, half, half);
+            sealed[c + 1] = full.slice(half, full.size, full.size - half);
+            System.arraycopy(current.sealed, c + 1, sealed, c + 2, current.sealed.length - c - 1);
+        }
+        entries = new Entries(sealed, current.lastChunk, current.size + 1);
+    }
+
+    /**
+     * @param current entries of the history
+     * @param pos     insertion point in the last chunk
+     * @return entries with the observation in the last chunk, which is sealed
+     *         and replaced when it is full
+     */
+    private static Entries addToLast(Entries current, int pos, Observation obs, long arrival) {
+        Chunk last = current.lastChunk;
+        int capacity = last.observations.length;
+
+        if (pos == last.size && last.size < capacity) { // readers never look past size
+            last.observations[pos] = obs;
+            last.arrivals[pos] = arrival;
+            return new Entries(current.sealed, new Chunk(last.observations, last.arrivals, last.size + 1),
+                    current.size + 1);
+        }
+        if (last.size < CHUNK_SIZE) {
+            int grown = last.size < capacity ? capacity : Math.min(CHUNK_SIZE, 2 * capacity);
+            return new Entries(current.sealed, last.insert(pos, obs, arrival, grown), current.size + 1);
+        }
+
+        Chunk[] sealed = new Chunk[current.sealed.length + 1];
+        System.arraycopy(current.sealed, 0, sealed, 0, current.sealed.length);
+        if (pos == last.size) { // the most recent starts a new chunk
+            sealed[sealed.length - 1] = last;
+            Chunk next = new Chunk(new Observation[CHUNK_SIZE], new long[CHUNK_SIZE], 1);
+            next.observations[0] = obs;
+            next.arrivals[0] = arrival;
+            return new Entries(sealed, next, current.size + 1);
+        }
+        Chunk full = last.insert(pos, obs, arrival, last.size + 1);
+        int half = full.size / 2;
+        sealed[sealed.length - 1] = full.slice(0, half, half);
+        return new Entries(sealed, full.slice(half, full.size, CHUNK_SIZE), current.size + 1);
+    }
+
+    /**
+     * Immutable list of chunks: the sealed ones are never written again, the
+     * last one is only written after its size
+     */
+    private static final class Entries {
+        private final Chunk[] sealed;
+        private final Chunk lastChunk;
+        private final int size; // observations in every chunk
+
+        private Entries(Chunk[] sealed, Chunk lastChunk, int size) {
+            this.sealed = sealed;
+            this.lastChunk = lastChunk;
+            this.size = size;
+        }
+
+        /**
+         * @return index of the last chunk
+         */
+        private int last() {
+            return sealed.length;
+        }
+
+        private Chunk chunk(int index) {
+            return index == sealed.length ? lastChunk : sealed[index];
+        }
+    }
+
+    /**
+     * Prefix of a chunk's arrays
+     */
+    private static final class Chunk {
+        private final Observation[] observations;
+        private final long[] arrivals;
+        private final int size;
+
+        private Chunk(Observation[] observations, long[] arrivals, int size) {
+            this.observations = observations;
+            this.arrivals = arrivals;
+            this.size = size;
+        }
+
+        /**
+         * @param time observation time in epoch milliseconds
+         * @return position of the first observation with a time after time
+         */
+        private int upperBound(long time) {
+            int low = 0;
+            int high = size;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (observations[mid].getTimeDate() > time) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return copy of the chunk with the observation at pos
+         */
+        private Chunk insert(int pos, Observation obs, long arrival, int capacity) {
+            Observation[] newObservations = new Observation[capacity];
+            long[] newArrivals = new long[capacity];
+
+            System.arraycopy(observations, 0, newObservations, 0, pos);
+            System.arraycopy(arrivals, 0, newArrivals, 0, pos);
+            newObservations[pos] = obs;
+            newArrivals[pos] = arrival;
+            System.arraycopy(observations, pos, newObservations, pos + 1, size - pos);
+            System.arraycopy(arrivals, pos, newArrivals, pos + 1, size - pos);
+            return new Chunk(newObservations, newArrivals, size + 1);
+        }
+
+        /**
+         * @return copy of the observations from one position to another
+         */
+        private Chunk slice(int from, int to, int capacity) {
+            Observation[] newObservations = new Observation[capacity];
+            long[] newArrivals = new long[capacity];
+
+            System.arraycopy(observations, from, newObservations, 0, to - from);
+            System.arraycopy(arrivals, from, newArrivals, 0, to - from);
+            return new Chunk(newObservations, newArrivals, to - from);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+/**
+ * Channels to the other replicas, kept open between gossip rounds so a round
+ * does not pay for a new connection to every peer. Keepalive pings find a
+ * dead connection before the next round uses it. The peers come from the
+ * naming server: a replica that is no longer registered has its channel
+ * closed and a replica registered under a new address gets a new channel.
+ * The latency and the failures of the gossip calls are counted per peer, and
+ * so are the replies with versions the peer compacted before this replica had
+ * them.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class PeerChannels {
+
+    // seconds between keepalive pings, -Ddepot.peer.keepalive overrides it, the
+    // server has to permit pings this often
+    static final long KEEPALIVE_SECONDS = Long.getLong("depot.peer.keepalive", 60);
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 20; // without an ack the connection is dropped
+
+    private Map<Integer, Peer> peers = new ConcurrentHashMap<Integer, Peer>(); // replica --> channel to it
+
+    // Getters
+
+    /**
+     * @param replica replica number
+     * @return channel to the replica or null if it is not a known peer
+     */
+    protected ManagedChannel get(int replica) {
+        Peer peer = peers.get(replica);
+        return peer == null ? null : peer.channel;
+    }
+
+    /**
+     * @return replica numbers of the known peers
+     */
+    protected Collection<Integer> getReplicas() {
+        return new ArrayList<Integer>(peers.keySet());
+    }
+
+    /**
+     * @return gossip calls, failures, latencies and compaction gaps of every
+     *         peer, e.g. gossip.peer.2.failures
+     */
+    protected Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new TreeMap<String, Long>();
+
+        for (Map.Entry<Integer, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            String prefix = "gossip.peer." + entry.getKey() + ".";
+
+            synchronized (peer) {
+                metrics.put(prefix + "calls", peer.calls);
+                metrics.put(prefix + "failures", peer.failures);
+                metrics.put(prefix + "compactionGaps", peer.compactionGaps);
+                metrics.put(prefix + "lastLatencyMs", TimeUnit.NANOSECONDS.toMillis(peer.lastLatency));
+                metrics.put(prefix + "meanLatencyMs",
+                        peer.calls == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(peer.totalLatency / peer.calls));
+            }
+        }
+        return metrics;
+    }
+
+    // Modifiers
+
+    /**
+     * Updates the peers to the replicas registered in the naming server, the
+     * channels of the peers that did not change are kept
+     *
+     * @param uris replica --> URI of every other replica
+     */
+    protected synchronized void update(Map<Integer, String> uris) {
+        List<ManagedChannel> closed = new ArrayList<ManagedChannel>();
+        Iterator<Map.Entry<Integer, Peer>> iter = peers.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<Integer, Peer> entry = iter.next();
+            if (!entry.getValue().uri.equals(uris.get(entry.getKey()))) {
+                closed.add(entry.getValue().channel);
+                iter.remove();
+            }
+        }
+        for (Map.Entry<Integer, String> entry : uris.entrySet()) {
+            if (!peers.containsKey(entry.getKey())) {
+                peers.put(entry.getKey(), new Peer(entry.getValue(), open(entry.getValue())));
+            }
+        }
+
+        for (ManagedChannel channel : closed) {
+            channel.shutdown(); // calls in progress finish first
+        }
+    }
+
+    /**
+     * Counts a gossip call that the peer answered
+     *
+     * @param replica replica number
+     * @param latency nanoseconds until the answer was applied
+     */
+    protected void recordCall(int replica, long latency) {
+        Peer peer = peers.get(replica);
+        if (peer == null) {
+            return; // removed during the call
+        }
+        synchronized (peer) {
+            peer.calls++;
+            peer.lastLatency = latency;
+            peer.totalLatency += latency;
+        }
+    }
+
+    /**
+     * Counts a gossip call that failed or missed its deadline
+     *
+     * @param replica replica number
+     */
+    protected void recordFailure(int replica) {
+        Peer peer = peers.get(replica);
+        if (peer == null) {
+            return;
+        }
+        synchronized (peer) {
+            peer.failures++;
+        }
+    }
+
+    /**
+     * Counts a gossip reply whose versions started after the ones the peer
+     * compacted, so this replica never got some of its updates
+     *
+     * @param replica replica number
+     */
+    protected void recordCompactionGap(int replica) {
+        Peer peer = peers.get(replica);
+        if (peer == null) {
+            return;
+        }
+        synchronized (peer) {
+            peer.compactionGaps++;
+        }
+    }
+
+    /**
+     * Closes every channel
+     */
+    protected synchronized void shutdown() {
+        for (Peer peer : peers.values()) {
+            peer.channel.shutdown();
+        }
+        peers.clear();
+    }
+
+    /**
+     * @param uri address of a replica
+     * @return channel that connects on its first call and stays open
+     */
+    private static ManagedChannel open(String uri) {
+        return ManagedChannelBuilder.forTarget(uri).usePlaintext()
+                .keepAliveTime(KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS).keepAliveWithoutCalls(true)
+                .build();
+    }
+
+    /**
+     * Channel with the address it was opened for and its gossip statistics
+     */
+    private static final class Peer {
+        private final String uri;
+        private final ManagedChannel channel;
+        private long calls; // answered gossip calls
+        private long failures; // failed gossip calls, deadlines included
+        private long compactionGaps; // replies that skipped compacted versions
+        private long lastLatency; // nanoseconds
+        private long totalLatency; // nanoseconds of every answered call
+
+        private Peer(String uri, ManagedChannel channel) {
+            this.uri = uri;
+            this.channel = channel;
+        }
+    }
+}
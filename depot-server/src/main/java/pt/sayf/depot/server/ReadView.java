@@ -0,0 +1,61 @@
+package pt.sayf.depot.server;
+
+/**
+ * Immutable view of the depot used by a query. Every observation added to the
+ * depot gets an arrival number and updates are published in arrival order, so
+ * a view is the last arrival number it can see together with the global
+ * timestamp of the updates up to that number.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public final class ReadView {
+
+    private final long visible; // last arrival number of the view
+    private final VectorClock timestamp; // global timestamp of the view
+
+    // Constructor
+
+    /**
+     * @param visible   last arrival number of the view
+     * @param timestamp global timestamp of the view
+     */
+    protected ReadView(long visible, VectorClock timestamp) {
+        this.visible = visible;
+        this.timestamp = timestamp;
+    }
+
+    // Getters
+
+    /**
+     * @param arrival arrival number of an observation
+     * @return true if the observation belongs to this view
+     */
+    protected boolean isVisible(long arrival) {
+        return arrival <= visible;
+    }
+
+    /**
+     * @return last arrival number of the view
+     */
+    protected long getVisible() {
+        return visible;
+    }
+
+    /**
+     * @return global timestamp of the view
+     */
+    protected VectorClock getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param replica replica number
+     * @return version of the replica in this view
+     */
+    protected int getTimestamp(int replica) {
+        return timestamp.get(replica);
+    }
+}
@@ -0,0 +1,65 @@
+package pt.sayf.depot.server;
+
+/**
+ * One MAC address or MAC fragment of a batch search, with the limits of search
+ * and searchMatch
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class SearchQuery {
+
+    private final long mac; // MAC or fragment digits, see MacAddress
+    private final int fragLength; // MacAddress.DIGITS for a complete MAC
+    private final boolean lastBits; // fragment is the end of the MAC
+    private final int maxResults; // per MAC, 0 or negative for all
+    private final int maxTotal; // in the whole result, 0 or negative for all
+
+    // Constructor
+
+    /**
+     * @param mac        MAC address or fragment digits
+     * @param fragLength number of hex digits in mac
+     * @param lastBits   true if the fragment is the end of the MAC
+     * @param maxResults most recent observations per MAC
+     * @param maxTotal   most recent observations in the whole result
+     */
+    protected SearchQuery(long mac, int fragLength, boolean lastBits, int maxResults, int maxTotal) {
+        this.mac = mac;
+        this.fragLength = fragLength;
+        this.lastBits = lastBits;
+        this.maxResults = maxResults;
+        this.maxTotal = maxTotal;
+    }
+
+    // Getters
+
+    protected long getMac() {
+        return mac;
+    }
+
+    protected int getFragLength() {
+        return fragLength;
+    }
+
+    protected boolean getLastBits() {
+        return lastBits;
+    }
+
+    protected int getMaxResults() {
+        return maxResults;
+    }
+
+    protected int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * @return true if the query is for a single complete MAC address
+     */
+    protected boolean isCompleteMac() {
+        return fragLength == MacAddress.DIGITS;
+    }
+}
@@ -0,0 +1,93 @@
+package pt.sayf.depot.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dictionary of the sentries referenced by observations, so that each
+ * observation only stores a small sentry id. Sentries are added rarely and read
+ * by every report and search, so only adding takes the lock.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class SentryDictionary {
+
+    private List<String> names; // id --> sentry name
+    private List<float[]> coords; // id --> (lat, long)
+    private Map<String, Integer> ids; // name,lat,long --> id
+
+    // Constructor
+
+    /**
+     * Empty dictionary constructor
+     */
+    protected SentryDictionary() {
+        names = new CopyOnWriteArrayList<String>();
+        coords = new CopyOnWriteArrayList<float[]>();
+        ids = new ConcurrentHashMap<String, Integer>();
+    }
+
+    // Getters
+
+    /**
+     * Returns the id of a sentry, adding it to the dictionary if it is new
+     *
+     * @param name sentry name
+     * @param lat  sentry latitude
+     * @param lon  sentry longitude
+     * @return sentry id
+     */
+    protected int getId(String name, float lat, float lon) {
+        String key = name + ',' + Float.toString(lat) + ',' + Float.toString(lon);
+        Integer id = ids.get(key);
+
+        if (id == null) {
+            synchronized (this) {
+                id = ids.get(key);
+                if (id == null) { // the id is only published after its name and coordinates
+                    id = names.size();
+                    names.add(name);
+                    coords.add(new float[] { lat, lon });
+                    ids.put(key, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @param id sentry id
+     * @return sentry name
+     */
+    protected String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @param id sentry id
+     * @return sentry latitude
+     */
+    protected float getLat(int id) {
+        return coords.get(id)[0];
+    }
+
+    /**
+     * @param id sentry id
+     * @return sentry longitude
+     */
+    protected float getLon(int id) {
+        return coords.get(id)[1];
+    }
+
+    /**
+     * @return number of sentries in the dictionary, their ids are 0 to size - 1
+     */
+    protected int size() {
+        return coords.size(); // coords are added after names
+    }
+}
@@ -0,0 +1,74 @@
+package pt.sayf.depot.server;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Conversions between epoch milliseconds and the project's time format e.g.
+ * 2019-11-06T20:00:00. DateTimeFormatter is immutable, so a single instance is
+ * shared by every thread.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public final class Timedate {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // last formatted second, observations of the same report share their time
+    private static volatile Cached last = new Cached(Long.MIN_VALUE, "");
+
+    private Timedate() {
+    }
+
+    /**
+     * @param timedate epoch milliseconds
+     * @return string timedate e.g. 2019-11-06T20:00:00
+     */
+    protected static String format(long timedate) {
+        long second = Math.floorDiv(timedate, 1000L);
+        Cached cached = last;
+
+        if (cached.second != second) {
+            String str = FORMATTER.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZONE));
+            cached = new Cached(second, str);
+            last = cached;
+        }
+        return cached.str;
+    }
+
+    /**
+     * @param timedate string e.g. 2019-11-06T20:00:00 or 2019-11-06 20:00:00
+     * @return epoch milliseconds
+     * @throws ParseException if timedate is not in the project's format
+     */
+    protected static long parse(String timedate) throws ParseException {
+        try {
+            LocalDateTime time = LocalDateTime.parse(timedate.replace(' ', 'T'), FORMATTER);
+            return time.atZone(ZONE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new ParseException(e.getMessage(), e.getErrorIndex());
+        }
+    }
+
+    /**
+     * Immutable pair of a second and its formatted string
+     */
+    private static final class Cached {
+        private final long second;
+        private final String str;
+
+        private Cached(long second, String str) {
+            this.second = second;
+            this.str = str;
+        }
+    }
+}
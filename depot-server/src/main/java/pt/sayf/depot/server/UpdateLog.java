@@ -0,0 +1,345 @@
+package pt.sayf.depot.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Log of a replica's updates indexed by version, of this replica or of
+ * another one whose updates are relayed. Versions are dense, so the
+ * log is an array of fixed size segments: a version is found with a shift and
+ * a mask, a range of versions is read segment by segment and compacted
+ * segments at the start are dropped. Each update can keep its encoded form for
+ * gossip replies, built the first time it is sent. A version missing above the
+ * compacted ones ends a range, so a reply never skips an update silently.
+ *
+ * Updates are added concurrently and out of version order, each slot is only
+ * written by the update with that version. Segments are added and dropped
+ * under the log's lock and published through a volatile reference.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class UpdateLog {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS; // versions per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private volatile Segments segments = new Segments(0, new ArrayList<AtomicReferenceArray<Entry>>());
+    private int floor = 0; // segments before this index were dropped, guarded by this
+    private volatile int compacted = 0; // versions up to it may have been removed
+    private AtomicInteger versions = new AtomicInteger(); // updates in the log
+    private AtomicLong observations = new AtomicLong(); // observations of those updates
+
+    // Getters
+
+    /**
+     * @param version update version
+     * @return the update or null if it is not in the log
+     */
+    protected Entry getEntry(int version) {
+        AtomicReferenceArray<Entry> segment = segments.get(version >>> SEGMENT_BITS);
+        return segment == null ? null : segment.get(version & SEGMENT_MASK);
+    }
+
+    /**
+     * @param version update version
+     * @return List<Observation> of the update or null if it is not in the log
+     */
+    protected List<Observation> get(int version) {
+        Entry entry = getEntry(version);
+        return entry == null ? null : entry.observations;
+    }
+
+    /**
+     * @param from first version
+     * @param to   last version
+     * @return updates of the range that are in the log, in version order, up to
+     *         the first missing version that was not compacted
+     */
+    protected List<Entry> range(int from, int to) {
+        List<Entry> result = new ArrayList<Entry>();
+        scan(from, to, result, true);
+        return result;
+    }
+
+    /**
+     * @param from first version
+     * @param to   last version
+     * @return last version up to to such that every version from from on is in
+     *         the log or was compacted, from - 1 if from is missing
+     */
+    protected int lastContiguous(int from, int to) {
+        return scan(from, to, null, true);
+    }
+
+    /**
+     * @return copy of the log, version --> observations of the update
+     */
+    protected Map<Integer, List<Observation>> copy() {
+        Map<Integer, List<Observation>> result = new TreeMap<Integer, List<Observation>>();
+        List<Entry> entries = new ArrayList<Entry>();
+
+        scan(0, Integer.MAX_VALUE, entries, false);
+        for (Entry entry : entries) {
+            result.put(entry.version, entry.observations);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a range of versions segment by segment
+     *
+     * @param from        first version
+     * @param to          last version
+     * @param result      updates found, null to only find where the range ends
+     * @param contiguous  true to stop at a missing version that was not
+     *                    compacted
+     * @return last version read, the one before the missing version if the
+     *         range stopped there
+     */
+    private int scan(int from, int to, List<Entry> result, boolean contiguous) {
+        Segments current = segments;
+        int lowest = compacted;
+
+        for (int version = Math.max(from, 0); version <= to;) {
+            AtomicReferenceArray<Entry> segment = current.get(version >>> SEGMENT_BITS);
+            int end = Math.min(to, version | SEGMENT_MASK); // last version of this segment
+
+            int base = version & ~SEGMENT_MASK; // first version of this segment
+            for (int i = version & SEGMENT_MASK; i <= (end & SEGMENT_MASK); i++) {
+                Entry entry = segment == null ? null : segment.get(i);
+                if (entry != null) {
+                    if (result != null) {
+                        result.add(entry);
+                    }
+                } else if (contiguous && base + i > lowest) {
+                    return base + i - 1;
+                } else if (segment == null) { // the rest of the segment is missing as well
+                    if (!contiguous || end <= lowest) {
+                        break;
+                    }
+                    i = lowest - base; // the next version ends the range
+                }
+            }
+            if (end == Integer.MAX_VALUE) {
+                break;
+            }
+            version = end + 1;
+        }
+        return to;
+    }
+
+    /**
+     * @return versions up to it may have been removed, see compact
+     */
+    protected int getCompacted() {
+        return compacted;
+    }
+
+    /**
+     * @return number of updates in the log
+     */
+    protected int size() {
+        return versions.get();
+    }
+
+    /**
+     * @return number of observations of the updates in the log
+     */
+    protected long getObservationCount() {
+        return observations.get();
+    }
+
+    // Modifiers
+
+    /**
+     * @param version versions up to this one may be removed from now on, they
+     *                no longer end a range
+     */
+    protected synchronized void compact(int version) {
+        compacted = Math.max(compacted, version);
+    }
+
+    /**
+     * @param version update version, not in the log yet
+     * @param obs     observations of the update, never changed afterwards
+     */
+    protected void put(int version, List<Observation> obs) {
+        AtomicReferenceArray<Entry> segment = segments.get(version >>> SEGMENT_BITS);
+
+        if (segment == null) {
+            segment = addSegment(version >>> SEGMENT_BITS);
+            if (segment == null) {
+                return; // already compacted
+            }
+        }
+        Entry old = segment.getAndSet(version & SEGMENT_MASK, new Entry(version, obs));
+        if (old == null) {
+            versions.incrementAndGet();
+        } else {
+            observations.addAndGet(-old.observations.size());
+        }
+        observations.addAndGet(obs.size());
+    }
+
+    /**
+     * @param version update version
+     */
+    protected void remove(int version) {
+        AtomicReferenceArray<Entry> segment = segments.get(version >>> SEGMENT_BITS);
+
+        if (segment != null) {
+            Entry entry = segment.getAndSet(version & SEGMENT_MASK, null);
+            if (entry != null) {
+                versions.decrementAndGet();
+                observations.addAndGet(-entry.observations.size());
+            }
+        }
+    }
+
+    /**
+     * Drops the segments at the start of the log that only have versions up to
+     * a given one and no longer have updates
+     *
+     * @param version every version up to this one was removed, except the ones
+     *                still kept in the log
+     */
+    protected synchronized void dropSegments(int version) {
+        Segments current = segments;
+        int dropped = 0;
+
+        for (AtomicReferenceArray<Entry> segment : current.list) {
+            int last = ((current.first + dropped) << SEGMENT_BITS) | SEGMENT_MASK;
+            if (last > version || !isEmpty(segment)) {
+                break;
+            }
+            dropped++;
+        }
+        if (dropped > 0) {
+            floor = current.first + dropped;
+            segments = new Segments(current.first + dropped,
+                    new ArrayList<AtomicReferenceArray<Entry>>(current.list.subList(dropped, current.list.size())));
+        }
+    }
+
+    /**
+     * Removes every update
+     */
+    protected synchronized void clear() {
+        segments = new Segments(0, new ArrayList<AtomicReferenceArray<Entry>>());
+        floor = 0;
+        compacted = 0;
+        versions.set(0);
+        observations.set(0);
+    }
+
+    /**
+     * Adds the segments up to the one of a version. An empty log starts at the
+     * first segment used, which is not always segment 0 after a restart.
+     *
+     * @param index segment index of a version
+     * @return the segment, null if the segment was already dropped
+     */
+    private synchronized AtomicReferenceArray<Entry> addSegment(int index) {
+        Segments current = segments;
+
+        if (index < floor) {
+            return null;
+        }
+        if (current.get(index) == null) {
+            int first = current.list.isEmpty() ? index : Math.min(index, current.first);
+            int last = current.list.isEmpty() ? index : Math.max(index, current.first + current.list.size() - 1);
+            List<AtomicReferenceArray<Entry>> list = new ArrayList<AtomicReferenceArray<Entry>>(last - first + 1);
+
+            for (int i = first; i <= last; i++) {
+                AtomicReferenceArray<Entry> segment = current.get(i);
+                list.add(segment == null ? new AtomicReferenceArray<Entry>(SEGMENT_SIZE) : segment);
+            }
+            current = new Segments(first, list);
+            segments = current;
+        }
+        return current.get(index);
+    }
+
+    private static boolean isEmpty(AtomicReferenceArray<Entry> segment) {
+        for (int i = 0; i < SEGMENT_SIZE; i++) {
+            if (segment.get(i) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Update of the log with its encoded form
+     */
+    protected static final class Entry {
+        private final int version;
+        private final List<Observation> observations;
+        private final long added = System.currentTimeMillis(); // when the update was put in the log
+        private volatile ByteString encoded; // compactBatch of the update, null until it is first sent
+
+        private Entry(int version, List<Observation> observations) {
+            this.version = version;
+            this.observations = observations;
+        }
+
+        protected int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return milliseconds when the update was put in the log
+         */
+        protected long getAdded() {
+            return added;
+        }
+
+        protected List<Observation> getObservations() {
+            return observations;
+        }
+
+        /**
+         * @return compactBatch of the update, null if it was never encoded
+         */
+        protected ByteString getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * @param encoded encoded form of the update, the same for every caller
+         */
+        protected void setEncoded(ByteString encoded) {
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Immutable list of segments, the first one holding the versions of
+     * segment index first
+     */
+    private static final class Segments {
+        private final int first;
+        private final List<AtomicReferenceArray<Entry>> list;
+
+        private Segments(int first, List<AtomicReferenceArray<Entry>> list) {
+            this.first = first;
+            this.list = list;
+        }
+
+        private AtomicReferenceArray<Entry> get(int index) {
+            int pos = index - first;
+            return pos < 0 || pos >= list.size() ? null : list.get(pos);
+        }
+    }
+}
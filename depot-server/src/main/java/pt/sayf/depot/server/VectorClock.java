@@ -0,0 +1,211 @@
+package pt.sayf.depot.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable vector timestamp of the replicas' versions. Replica numbers are
+ * not bounded: only the replicas with a version are kept, sorted by replica
+ * number, and a replica that is not in the clock is at version 0. A replica
+ * that joins the system only has to appear in a clock, there is no fixed
+ * number of positions to agree on.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public final class VectorClock {
+
+    static final VectorClock EMPTY = new VectorClock(new int[0], new int[0]);
+
+    private final int[] replicas; // replica numbers, sorted
+    private final int[] versions; // version of each replica, never 0
+
+    // Constructor
+
+    private VectorClock(int[] replicas, int[] versions) {
+        this.replicas = replicas;
+        this.versions = versions;
+    }
+
+    /**
+     * @param replicas replica numbers, in any order
+     * @param versions version of each replica, 0 for none
+     * @return VectorClock with the versions, a replica listed twice keeps the
+     *         highest version
+     */
+    protected static VectorClock of(int[] replicas, int[] versions) {
+        VectorClock clock = EMPTY;
+
+        for (int i = 0; i < replicas.length && i < versions.length; i++) {
+            clock = clock.advance(replicas[i], versions[i]);
+        }
+        return clock;
+    }
+
+    // Getters
+
+    /**
+     * @param replica replica number
+     * @return version of the replica, 0 if it is not in the clock
+     */
+    protected int get(int replica) {
+        int pos = Arrays.binarySearch(replicas, replica);
+        return pos < 0 ? 0 : versions[pos];
+    }
+
+    /**
+     * @return number of replicas with a version
+     */
+    protected int size() {
+        return replicas.length;
+    }
+
+    /**
+     * @param i position, from 0 to size - 1
+     * @return replica number at the position
+     */
+    protected int getReplica(int i) {
+        return replicas[i];
+    }
+
+    /**
+     * @param i position, from 0 to size - 1
+     * @return version of the replica at the position
+     */
+    protected int getVersion(int i) {
+        return versions[i];
+    }
+
+    /**
+     * @param other clock to compare with
+     * @return true if this clock has a version newer than the other's
+     */
+    protected boolean isAheadOf(VectorClock other) {
+        for (int i = 0; i < replicas.length; i++) {
+            if (versions[i] > other.get(replicas[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Modifiers
+
+    /**
+     * @param replica replica number
+     * @param version new version of the replica, 0 removes it
+     * @return clock with the replica at the version
+     */
+    protected VectorClock with(int replica, int version) {
+        int pos = Arrays.binarySearch(replicas, replica);
+
+        if (pos >= 0) {
+            if (versions[pos] == version) {
+                return this;
+            }
+            if (version == 0) {
+                return without(pos);
+            }
+            int[] changed = versions.clone();
+            changed[pos] = version;
+            return new VectorClock(replicas, changed);
+        }
+        if (version == 0) {
+            return this;
+        }
+
+        int insert = -pos - 1;
+        int[] newReplicas = new int[replicas.length + 1];
+        int[] newVersions = new int[versions.length + 1];
+        System.arraycopy(replicas, 0, newReplicas, 0, insert);
+        System.arraycopy(versions, 0, newVersions, 0, insert);
+        newReplicas[insert] = replica;
+        newVersions[insert] = version;
+        System.arraycopy(replicas, insert, newReplicas, insert + 1, replicas.length - insert);
+        System.arraycopy(versions, insert, newVersions, insert + 1, versions.length - insert);
+        return new VectorClock(newReplicas, newVersions);
+    }
+
+    /**
+     * @param replica replica number
+     * @param version version of the replica
+     * @return clock with the replica at the version, unless it was already newer
+     */
+    protected VectorClock advance(int replica, int version) {
+        return version > get(replica) ? with(replica, version) : this;
+    }
+
+    private VectorClock without(int pos) {
+        int[] newReplicas = new int[replicas.length - 1];
+        int[] newVersions = new int[versions.length - 1];
+
+        System.arraycopy(replicas, 0, newReplicas, 0, pos);
+        System.arraycopy(versions, 0, newVersions, 0, pos);
+        System.arraycopy(replicas, pos + 1, newReplicas, pos, replicas.length - pos - 1);
+        System.arraycopy(versions, pos + 1, newVersions, pos, versions.length - pos - 1);
+        return new VectorClock(newReplicas, newVersions);
+    }
+
+    // Encoding
+
+    /**
+     * Writes the clock to a log record or snapshot
+     *
+     * @param out
+     * @throws IOException
+     */
+    protected void write(DataOutputStream out) throws IOException {
+        out.writeInt(replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            out.writeInt(replicas[i]);
+            out.writeInt(versions[i]);
+        }
+    }
+
+    /**
+     * @param in
+     * @return VectorClock written by write
+     * @throws IOException
+     */
+    protected static VectorClock read(DataInputStream in) throws IOException {
+        int[] replicas = new int[in.readInt()];
+        int[] versions = new int[replicas.length];
+
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = in.readInt();
+            versions[i] = in.readInt();
+        }
+        return of(replicas, versions);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VectorClock)) {
+            return false;
+        }
+        VectorClock other = (VectorClock) obj;
+        return Arrays.equals(replicas, other.replicas) && Arrays.equals(versions, other.versions);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(replicas) + Arrays.hashCode(versions);
+    }
+
+    /**
+     * @return string e.g. {1=5, 3=2}
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+
+        for (int i = 0; i < replicas.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(replicas[i]).append('=').append(versions[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
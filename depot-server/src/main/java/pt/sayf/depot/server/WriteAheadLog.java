@@ -0,0 +1,379 @@
+package pt.sayf.depot.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the depot's updates, kept in segment files of a data
+ * directory. Records are written by a single thread: it takes every record
+ * queued since its last write, writes them together and syncs the file once,
+ * so concurrent reports share the cost of one fsync (group commit).
+ *
+ * Each record is its length, a CRC32 of its contents, its type and its
+ * payload. A record cut by a crash at the end of the last segment is dropped
+ * when the log is read. Records are numbered in order, so a snapshot of the
+ * depot only needs the log after the last record it includes, and segments
+ * before that can be deleted.
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class WriteAheadLog {
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 9; // length, crc, type
+
+    // bytes after which a new segment is started, -Ddepot.wal.segment overrides it
+    static final long SEGMENT_SIZE = Long.getLong("depot.wal.segment", 64L * 1024 * 1024);
+
+    private File directory;
+    private FileChannel channel; // segment being written, only used by the writer thread
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024); // records of one group commit
+
+    private LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>(); // records waiting to be written
+    private long appended = 0; // sequence number of the last queued record, guarded by queue
+    private long durable = 0; // sequence number of the last synced record, guarded by this
+    private IOException failure = null; // set when the writer can no longer write, guarded by this
+    private volatile boolean rollRequested = false; // start a new segment after the next write
+
+    /**
+     * Receives the records of the log when it is read
+     */
+    protected interface Reader {
+        void read(byte type, ByteBuffer payload) throws IOException;
+    }
+
+    // Constructor
+
+    /**
+     * Opens the log of a directory, creating the directory if needed. The
+     * records already in the log should be read with replay before new records
+     * are appended.
+     *
+     * @param directory data directory of the log
+     * @throws IOException if the directory can not be used
+     */
+    protected WriteAheadLog(File directory) throws IOException {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create data directory " + directory);
+        }
+    }
+
+    // Getters
+
+    /**
+     * @return segments of the log sorted by their first sequence number
+     */
+    protected File[] getSegments() {
+        File[] segments = directory.listFiles();
+
+        if (segments == null) {
+            return new File[0];
+        }
+        List<File> result = new ArrayList<File>();
+        for (File segment : segments) {
+            if (segment.getName().startsWith(PREFIX) && segment.getName().endsWith(SUFFIX)) {
+                result.add(segment);
+            }
+        }
+        File[] sorted = result.toArray(new File[result.size()]);
+        Arrays.sort(sorted); // the names have a fixed width
+        return sorted;
+    }
+
+    /**
+     * @return sequence number of the last record appended
+     */
+    protected long getLastSequence() {
+        synchronized (queue) {
+            return appended;
+        }
+    }
+
+    // Modifiers
+
+    /**
+     * Reads the records of the log after a given one in order and starts the
+     * writer thread. Records appended afterwards continue the sequence numbers
+     * of the log in a new segment.
+     *
+     * @param after  sequence number of the last record already applied, 0 for
+     *               none
+     * @param reader receives each record
+     * @throws IOException if a record other than the last one is corrupted
+     */
+    protected void replay(long after, Reader reader) throws IOException {
+        File[] segments = getSegments();
+
+        durable = after;
+        for (int i = 0; i < segments.length; i++) {
+            if (i < segments.length - 1 && firstSequence(segments[i + 1]) - 1 <= after) {
+                continue; // every record of the segment was applied
+            }
+            FileChannel in = FileChannel.open(segments[i].toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                long[] end = readSegment(in, firstSequence(segments[i]), after, reader);
+                durable = Math.max(after, firstSequence(segments[i]) + end[1] - 1);
+                if (end[0] < in.size()) {
+                    if (i < segments.length - 1) {
+                        throw new IOException("Corrupted write-ahead log segment " + segments[i]);
+                    }
+                    System.out.println("Dropping incomplete record at the end of " + segments[i]);
+                    in.truncate(end[0]);
+                    in.force(true);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        appended = durable;
+        openSegment();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "depot-wal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param in     segment to read
+     * @param first  sequence number of the first record of the segment
+     * @param after  records up to this sequence number are skipped
+     * @param reader receives each record
+     * @return position after the last complete record and number of records
+     */
+    private long[] readSegment(FileChannel in, long first, long after, Reader reader) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long records = 0;
+
+        while (position + HEADER_SIZE <= in.size()) {
+            header.clear();
+            readFully(in, header, position);
+            int length = header.getInt();
+            int crc = header.getInt();
+            byte type = header.get();
+
+            if (length < 0 || position + HEADER_SIZE + length > in.size()) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(in, payload, position + HEADER_SIZE);
+            if (checksum(type, payload) != crc) {
+                break;
+            }
+            if (first + records > after) {
+                reader.read(type, payload);
+            }
+            position += HEADER_SIZE + length;
+            records++;
+        }
+        return new long[] { position, records };
+    }
+
+    /**
+     * Fills a buffer from a position of a file and flips it for reading
+     */
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of write-ahead log");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @param segment segment file
+     * @return sequence number of the first record of the segment
+     */
+    private static long firstSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Deletes the segments whose records are all up to a sequence number, the
+     * segment being written is kept
+     *
+     * @param sequence last record no longer needed
+     */
+    protected void truncate(long sequence) {
+        File[] segments = getSegments();
+
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (firstSequence(segments[i + 1]) - 1 > sequence) {
+                return;
+            }
+            if (!segments[i].delete()) {
+                System.out.println("Failed to delete " + segments[i]);
+            }
+        }
+    }
+
+    /**
+     * Asks the writer to start a new segment after its next write, so the
+     * current one can be truncated sooner
+     */
+    protected void roll() {
+        rollRequested = true;
+    }
+
+    /**
+     * Queues a record for the writer thread
+     *
+     * @param type    record type, see DepotBase
+     * @param payload record contents
+     * @return sequence number of the record, see sync
+     */
+    protected long append(byte type, byte[] payload) {
+        synchronized (queue) { // sequence numbers are queued in order
+            queue.add(new Record(++appended, type, payload));
+            return appended;
+        }
+    }
+
+    /**
+     * Waits until a record and every record before it are on disk
+     *
+     * @param sequence sequence number returned by append
+     * @throws IOException if the log could not be written
+     */
+    protected synchronized void sync(long sequence) throws IOException {
+        boolean interrupted = false;
+
+        while (durable < sequence && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < sequence) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writer thread: writes the queued records in groups, one fsync per group
+     */
+    private void write() {
+        List<Record> group = new ArrayList<Record>();
+
+        try {
+            while (true) {
+                group.add(queue.take());
+                queue.drainTo(group);
+
+                buffer.clear();
+                for (Record record : group) {
+                    put(record);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+
+                synchronized (this) {
+                    durable = group.get(group.size() - 1).sequence;
+                    notifyAll();
+                }
+                if (rollRequested || channel.size() >= SEGMENT_SIZE) {
+                    rollRequested = false;
+                    channel.close();
+                    openSegment();
+                }
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            fail(new IOException("Write-ahead log writer was interrupted"));
+        } catch (IOException e) {
+            System.out.println("Failed to write the write-ahead log: " + e.getMessage());
+            fail(e);
+        }
+    }
+
+    /**
+     * Adds a record to the buffer of the group, growing it if needed
+     */
+    private void put(Record record) {
+        if (buffer.remaining() < HEADER_SIZE + record.payload.length) {
+            ByteBuffer larger = ByteBuffer
+                    .allocate(Math.max(2 * buffer.capacity(), buffer.position() + HEADER_SIZE + record.payload.length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.putInt(record.payload.length);
+        buffer.putInt(checksum(record.type, ByteBuffer.wrap(record.payload)));
+        buffer.put(record.type);
+        buffer.put(record.payload);
+    }
+
+    /**
+     * Starts the segment of the next record to be written, named after its
+     * sequence number
+     */
+    private void openSegment() throws IOException {
+        File segment;
+
+        synchronized (this) {
+            segment = new File(directory, String.format("%s%020d%s", PREFIX, durable + 1, SUFFIX));
+        }
+        channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * @return CRC32 of a record's type and payload
+     */
+    private static int checksum(byte type, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+
+        crc.update(type);
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record waiting to be written
+     */
+    private static final class Record {
+        private final long sequence;
+        private final byte type;
+        private final byte[] payload;
+
+        private Record(long sequence, byte type, byte[] payload) {
+            this.sequence = sequence;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pt.sayf.depot.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention benchmark for report ingestion. Several threads report to the same
+ * depot at once, each as its own sentry, while one reader keeps searching MAC
+ * fragments. Prints the report throughput for 1, 2, 4, ... writer threads.
+ * With -Ddepot.data each run logs its reports to a new directory there.
+ *
+ * The sizes are system properties, since exec:java passes the replica's
+ * arguments of the pom to every main class: -Dbenchmark.threads (most writer
+ * threads), -Dbenchmark.reports (reports per thread) and -Dbenchmark.macs
+ * (observations per report).
+ *
+ * @author DanLopess - Daniel Lopes
+ * @version 1.0.0
+ *
+ */
+
+public class IngestBenchmark {
+
+    private static final int DISTINCT_MACS = 1 << 16; // MACs are drawn from this many
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = Integer.getInteger("benchmark.threads", Runtime.getRuntime().availableProcessors());
+        int reports = Integer.getInteger("benchmark.reports", 20000);
+        int macsPerReport = Integer.getInteger("benchmark.macs", 10);
+
+        run(Math.min(2, maxThreads), reports / 4, macsPerReport); // warm up
+
+        System.out.println("threads,reports/s,observations/s,searches/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, reports, macsPerReport);
+        }
+    }
+
+    /**
+     * @param threads       writer threads
+     * @param reports       reports sent by each writer
+     * @param macsPerReport observations in each report
+     */
+    private static void run(final int threads, final int reports, final int macsPerReport) throws Exception {
+        final DepotBase depot = new DepotBase(1);
+        String dataDir = System.getProperty("depot.data");
+        if (dataDir != null) {
+            depot.recover(new File(dataDir, "benchmark-" + threads + "-" + System.currentTimeMillis()));
+        }
+        final VectorClock timestamp = VectorClock.EMPTY;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong searches = new AtomicLong();
+        List<Thread> writers = new ArrayList<Thread>();
+
+        for (int t = 0; t < threads; t++) {
+            final String sentry = "sentry" + t;
+            final long seed = t;
+            depot.addSentry(sentry, t, t);
+
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int r = 0; r < reports; r++) {
+                            List<Long> macs = new ArrayList<Long>(macsPerReport);
+                            for (int m = 0; m < macsPerReport; m++) {
+                                macs.add(0xAA0000000000L | random.nextInt(DISTINCT_MACS));
+                            }
+                            depot.addObservationList(sentry, macs, timestamp);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                while (writing.get()) {
+                    depot.getObservationByMac(0xAA00 | random.nextInt(256), 6, false, 1, 10, depot.getReadView());
+                    searches.incrementAndGet();
+                }
+            }
+        });
+
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        reader.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        writing.set(false);
+        reader.join();
+
+        long total = (long) threads * reports;
+        System.out.printf("%d,%.0f,%.0f,%.0f%n", threads, total / seconds, total * macsPerReport / seconds,
+                searches.get() / seconds);
+    }
+}
@@ -5,9 +5,11 @@ import pt.ulisboa.tecnico.sdis.zk.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Collection;
@@ -16,6 +18,7 @@ import java.util.Comparator;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
@@ -25,11 +28,10 @@ import pt.sayf.depot.grpc.Depot.observ;
 
 public class SeekerApp {
 
-	private static final int MAXSIZE = 10;
-	private static int[] prevTS = new int[MAXSIZE];
+	private static Map<Integer, Integer> prevTS = new TreeMap<Integer, Integer>(); // replica --> version
 	private static Map<String, List<observ>> cache = new HashMap<String, List<observ>>(); 
 	// request message --> list of observations
-	private static Map<String, int[]> cacheContent = new HashMap<String, int[]>(); 
+	private static Map<String, Map<Integer, Integer>> cacheContent = new HashMap<String, Map<Integer, Integer>>(); 
 	// completes cache map with request message and its timestamp
 
 	/**
@@ -44,21 +46,15 @@ public class SeekerApp {
 	private static ArrayList<String> processReply(Object resp, boolean isSearchMatch, int max, String mac) {
 		ArrayList<String> output = new ArrayList<String>();
 		String requestMessage = (max == -1 ? "trace" : "track") + ':' + mac;
-		int[] timestamp = new int[MAXSIZE];
+		Map<Integer, Integer> timestamp;
 		ArrayList<observ> observations = new ArrayList<observ>();
 		ArrayList<observ> sortedObservations = new ArrayList<observ>();
 		String out;
 
 		if (isSearchMatch) {
-			Depot.searchMatchReply reply = (Depot.searchMatchReply) resp;
-			for (int i = 0; i < MAXSIZE; i++) {
-				timestamp[i] = reply.getTimestamp(i);
-			}
+			timestamp = toTimestamp(((Depot.searchMatchReply) resp).getTimestamp());
 		} else {
-			Depot.searchReply reply = (Depot.searchReply) resp;
-			for (int i = 0; i < MAXSIZE; i++) {
-				timestamp[i] = reply.getTimestamp(i); 
-			}
+			timestamp = toTimestamp(((Depot.searchReply) resp).getTimestamp());
 		}
 
 		if (inCache(requestMessage, timestamp)) { // checks if its in cache and has a >= timestamp
@@ -73,19 +69,95 @@ public class SeekerApp {
 
 		// prints the observations
 		for (observ iter : sortedObservations) {
-			out = new String();
-
-			out = out.concat(iter.getMac() + ",");
-			out = out.concat(iter.getTimedate() + ",");
-			out = out.concat(iter.getSentry() + ",");
-			out = out.concat(Float.toString(iter.getLat()) + ",");
-			out = out.concat(Float.toString(iter.getLon()) + "\n");
+			out = toLine(iter);
 
 			output.add(out);
 		}
 		return output;
 	}
 
+	/**
+	 * Builds the output line of an observation
+	 * 
+	 * @param iter observation
+	 * @return String e.g. mac,timedate,sentry,lat,lon
+	 */
+	private static String toLine(observ iter) {
+		String out = new String();
+
+		out = out.concat(iter.getMac() + ",");
+		out = out.concat(iter.getTimedate() + ",");
+		out = out.concat(iter.getSentry() + ",");
+		out = out.concat(Float.toString(iter.getLat()) + ",");
+		out = out.concat(Float.toString(iter.getLon()) + "\n");
+		return out;
+	}
+
+	/**
+	 * Method for performing a trace with a search stream, each chunk is printed
+	 * as soon as it arrives. The stream's header has the timestamp, if the cache
+	 * has a more recent reply the stream is cancelled and the cache is printed.
+	 * 
+	 * @param mac     - mac address or fragment
+	 * @param channel
+	 */
+	private static void traceStream(String mac, ManagedChannel channel) {
+		DepotServiceGrpc.DepotServiceBlockingStub stub = DepotServiceGrpc.newBlockingStub(channel);
+		String requestMessage = "trace:" + mac;
+		ArrayList<observ> observations = new ArrayList<observ>();
+		Map<Integer, Integer> timestamp;
+		Context.CancellableContext context = Context.current().withCancellation();
+		Context previous = context.attach();
+
+		try {
+			Iterator<Depot.searchChunk> chunks;
+			if (mac.length() == 17) {
+				Depot.searchRequest.Builder builder = Depot.searchRequest.newBuilder();
+				builder.setMac(mac);
+				builder.setMaxResults(-1);
+				builder.setTimestamp(toClock(prevTS));
+				chunks = stub.searchStream(builder.build());
+			} else {
+				Depot.searchMatchRequest.Builder builder = Depot.searchMatchRequest.newBuilder();
+				builder.setFragMac(mac);
+				builder.setLastBits(mac.startsWith(":") ? true : false);
+				builder.setMaxResults(-1);
+				builder.setTimestamp(toClock(prevTS));
+				chunks = stub.searchMatchStream(builder.build());
+			}
+
+			Depot.searchChunk header = chunks.next();
+			if (header.getError().equals("No observations found.")) {
+				return;
+			}
+			timestamp = toTimestamp(header.getTimestamp());
+
+			if (inCache(requestMessage, timestamp)) { // cached reply is more recent
+				context.cancel(null);
+				for (observ iter : sortObservations(getFromCache(requestMessage))) {
+					System.out.println(toLine(iter));
+				}
+				return;
+			}
+
+			while (chunks.hasNext()) { // already sorted by the depot
+				for (observ iter : chunks.next().getObservationsList()) {
+					System.out.println(toLine(iter));
+					observations.add(iter);
+				}
+			}
+
+			if (observations.size() > 0) {
+				pushToCache(requestMessage, observations, timestamp);
+				if (verifyTimestamp(timestamp))
+					prevTS = timestamp;
+			}
+		} finally {
+			context.detach(previous);
+			context.cancel(null);
+		}
+	}
+
 	/**
 	 * Method for verifying the response timestamp, compare it and evaluate whether
 	 * to print from the cached response already stored, or print the new one and
@@ -95,14 +167,14 @@ public class SeekerApp {
 	 * @param timestamp
 	 * @return true if the most response is on the cache or false otherwise
 	 */
-	private static Boolean inCache(String requestMessage, int[] timestamp) {
-		int[] prevTimestamp = cacheContent.get(requestMessage);
+	private static Boolean inCache(String requestMessage, Map<Integer, Integer> timestamp) {
+		Map<Integer, Integer> prevTimestamp = cacheContent.get(requestMessage);
 
 		if (prevTimestamp == null) { // this request has not been made
 			return false;
 		} else {
-			for (int i = 0; i < MAXSIZE; i++) {
-				if (prevTimestamp[i] > timestamp[i]) { // if higher version, then should not get from cache
+			for (Map.Entry<Integer, Integer> entry : prevTimestamp.entrySet()) {
+				if (entry.getValue() > getVersion(timestamp, entry.getKey())) { // if higher version, then should not get from cache
 					return true;
 				}
 			}
@@ -118,7 +190,8 @@ public class SeekerApp {
 	 * @param observations   - list of observations
 	 * @param timestamp      - vector of replicas' versions
 	 */
-	private static void pushToCache(String requestMessage, ArrayList<observ> observations, int[] timestamp) {
+	private static void pushToCache(String requestMessage, ArrayList<observ> observations,
+			Map<Integer, Integer> timestamp) {
 		if (cacheContent.get(requestMessage) != null) { // if request has been made, replaces
 			cacheContent.replace(requestMessage, timestamp);
 			cache.replace(requestMessage, observations);
@@ -153,7 +226,8 @@ public class SeekerApp {
 	 * @param timestamp
 	 * @return ArrayList containing the observations
 	 */
-	private static ArrayList<observ> getObservations(Object resp, boolean isSearchMatch, int[] timestamp) {
+	private static ArrayList<observ> getObservations(Object resp, boolean isSearchMatch,
+			Map<Integer, Integer> timestamp) {
 		ArrayList<observ> observations = new ArrayList<observ>();
 
 		if (isSearchMatch) {
@@ -182,15 +256,51 @@ public class SeekerApp {
 	 * @param ts received timestamp
 	 * @return true if timestamp is equal or higher
 	 */
-	private static boolean verifyTimestamp(int[] ts) {
-		for (int i = 0; i < MAXSIZE; i++) {
-			if (ts[i] < prevTS[i]) {
+	private static boolean verifyTimestamp(Map<Integer, Integer> ts) {
+		for (Map.Entry<Integer, Integer> entry : prevTS.entrySet()) {
+			if (getVersion(ts, entry.getKey()) < entry.getValue()) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	/**
+	 * @param ts      timestamp, replica --> version
+	 * @param replica replica number
+	 * @return version of the replica, 0 if it is not in the timestamp
+	 */
+	private static int getVersion(Map<Integer, Integer> ts, int replica) {
+		Integer version = ts.get(replica);
+		return version == null ? 0 : version;
+	}
+
+	/**
+	 * @param ts timestamp, replica --> version
+	 * @return Depot.vectorClock with the replicas of the timestamp
+	 */
+	private static Depot.vectorClock toClock(Map<Integer, Integer> ts) {
+		Depot.vectorClock.Builder builder = Depot.vectorClock.newBuilder();
+
+		for (Map.Entry<Integer, Integer> entry : ts.entrySet()) {
+			builder.addReplicas(entry.getKey()).addVersions(entry.getValue());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param clock timestamp of a depot reply
+	 * @return Map<Integer, Integer> replica --> version
+	 */
+	private static Map<Integer, Integer> toTimestamp(Depot.vectorClock clock) {
+		Map<Integer, Integer> ts = new TreeMap<Integer, Integer>();
+
+		for (int i = 0; i < clock.getReplicasCount() && i < clock.getVersionsCount(); i++) {
+			ts.put(clock.getReplicas(i), clock.getVersions(i));
+		}
+		return ts;
+	}
+
 	/**
 	 * After receiving a list of observations, returns a sorted listed by time and
 	 * mac address
@@ -245,14 +355,15 @@ public class SeekerApp {
 			System.out.println("Invalid mac address");
 			return;
 		} else {
-			if (mac.length() == 17) {
+			if (max == -1) {
+				traceStream(mac, channel);
+
+			} else if (mac.length() == 17) {
 				DepotServiceGrpc.DepotServiceBlockingStub stub = DepotServiceGrpc.newBlockingStub(channel);
 				Depot.searchRequest.Builder builder = Depot.searchRequest.newBuilder();
 				builder.setMac(mac);
 				builder.setMaxResults(max);
-				for (int i = 0; i < MAXSIZE; i++) {
-					builder.addTimestamp(prevTS[i]);
-				}
+				builder.setTimestamp(toClock(prevTS));
 
 				Depot.searchReply resp = stub.search(builder.build());
 
@@ -270,9 +381,7 @@ public class SeekerApp {
 				builder.setFragMac(mac);
 				builder.setLastBits(mac.startsWith(":") ? true : false);
 				builder.setMaxResults(max);
-				for (int i = 0; i < MAXSIZE; i++) {
-					builder.addTimestamp(prevTS[i]);
-				}
+				builder.setTimestamp(toClock(prevTS));
 				Depot.searchMatchReply resp = stub.searchMatch(builder.build());
 				if(!resp.getError().equals("No observations found.")) { // if no error --> has data
 					for (String string : processReply(resp, true, max, mac)) {
@@ -285,6 +394,56 @@ public class SeekerApp {
 		}
 	}
 
+	/**
+	 * Method for performing a track or trace of several macs with a single batch
+	 * search, every result is read by the depot at the same timestamp
+	 * 
+	 * @param macs    - mac addresses or fragments
+	 * @param max     - max results of each mac
+	 * @param channel
+	 */
+	private static void batchSearch(String[] macs, int max, ManagedChannel channel) {
+		DepotServiceGrpc.DepotServiceBlockingStub stub = DepotServiceGrpc.newBlockingStub(channel);
+		Depot.batchSearchRequest.Builder builder = Depot.batchSearchRequest.newBuilder();
+
+		for (String mac : macs) {
+			if (!validateMac(mac)) {
+				System.out.println("Invalid mac address " + mac);
+				return;
+			}
+			builder.addItems(Depot.batchItem.newBuilder().setMac(mac).setLastBits(mac.startsWith(":") ? true : false)
+					.setMaxResults(max));
+		}
+		builder.setTimestamp(toClock(prevTS));
+
+		Depot.batchSearchReply resp = stub.batchSearch(builder.build());
+		if (resp.getError().equals("No observations found.")) {
+			return;
+		}
+		Map<Integer, Integer> timestamp = toTimestamp(resp.getTimestamp());
+
+		for (int i = 0; i < macs.length; i++) {
+			String requestMessage = (max == -1 ? "trace" : "track") + ':' + macs[i];
+			ArrayList<observ> observations;
+
+			if (inCache(requestMessage, timestamp)) { // cached reply is more recent
+				observations = getFromCache(requestMessage);
+			} else {
+				observations = new ArrayList<observ>(resp.getResults(i).getObservationsList());
+				if (observations.size() > 0) {
+					pushToCache(requestMessage, observations, timestamp);
+				}
+			}
+
+			for (observ iter : sortObservations(observations)) {
+				System.out.println(toLine(iter));
+			}
+		}
+
+		if (verifyTimestamp(timestamp))
+			prevTS = timestamp;
+	}
+
 	/**
 	 * Returns a zkrecord related to a depot server
 	 * 
@@ -355,9 +514,17 @@ public class SeekerApp {
 				String command = br.readLine();
 
 				if (command.startsWith("track")) {
-					search(command.replace("track ", ""), 1, channel);
+					String[] macs = command.replace("track ", "").trim().split("\\s+");
+					if (macs.length > 1) // several macs are searched in a single request
+						batchSearch(macs, 1, channel);
+					else
+						search(macs[0], 1, channel);
 				} else if (command.startsWith("trace")) {
-					search(command.replace("trace ", ""), -1, channel);
+					String[] macs = command.replace("trace ", "").trim().split("\\s+");
+					if (macs.length > 1)
+						batchSearch(macs, -1, channel);
+					else
+						search(macs[0], -1, channel);
 				} else if (command.startsWith("quit")) {
 					channel.shutdownNow();
 					System.exit(0);
@@ -1,6 +1,8 @@
 package pt.sayf.sentry.server;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Sentry base class with method implementation
@@ -16,8 +18,7 @@ public class SentryBase {
 	private String name;
 	private float latitude;
 	private float longitude;
-	private int[] timestamp;
-	public final int MAXSIZE = 10;
+	private Map<Integer, Integer> timestamp; // replica --> latest version seen, missing replicas are at 0
 
 	// Constructor
 	/**
@@ -28,7 +29,7 @@ public class SentryBase {
 		name = "";
 		latitude = 0;
 		longitude = 0;
-		timestamp = new int[MAXSIZE];		
+		timestamp = new TreeMap<Integer, Integer>();		
 	}
 
 	/**
@@ -43,7 +44,7 @@ public class SentryBase {
 		name = n;
 		latitude = lat;
 		longitude = lon;
-		timestamp = new int[MAXSIZE];	
+		timestamp = new TreeMap<Integer, Integer>();	
 	}
 
 	// Getters
@@ -121,19 +122,20 @@ public class SentryBase {
 	 * Update Timestamp List
 	 * @param ts new timestamp
 	 */
-	protected synchronized void setTimestamp(int[] ts) {
-		for(int i = 0; i < MAXSIZE; i++) {
-			if(timestamp[i] < ts[i]) {
-				timestamp[i] = ts[i];
+	protected synchronized void setTimestamp(Map<Integer, Integer> ts) {
+		for (Map.Entry<Integer, Integer> entry : ts.entrySet()) {
+			Integer version = timestamp.get(entry.getKey());
+			if (version == null || version < entry.getValue()) {
+				timestamp.put(entry.getKey(), entry.getValue());
 			}
 		}
 	}
 	
 	/**
-	 * @return timestamp list
+	 * @return copy of the timestamp, replica --> version
 	 */
-	protected synchronized int[] getTimestamp() {
-		return timestamp;
+	protected synchronized Map<Integer, Integer> getTimestamp() {
+		return new TreeMap<Integer, Integer>(timestamp);
 	}
 	
 }
@@ -5,7 +5,9 @@ import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
@@ -122,20 +124,13 @@ public class SentryImpl extends sentryServiceGrpc.sentryServiceImplBase {
 
 				Depot.reportRequest.Builder depotRequest = Depot.reportRequest.newBuilder().addAllObservations(sentry.getMacList())
 					.setSentry(sentry.getName());
-				int[] timestamp = sentry.getTimestamp();
-		
-				for(int i = 0; i < sentry.MAXSIZE; i++) {
-					depotRequest.addTimestamp(timestamp[i]);
-				}
+				depotRequest.setTimestamp(toClock(sentry.getTimestamp()));
 
 				Depot.reportReply depotReply = stub.report(depotRequest.build());
 
 				if (depotReply.getStatus()) {
 					sentry.clearMacs();
-					for(int j = 0; j < sentry.MAXSIZE; j++) {
-						timestamp[j] = depotReply.getTimestamp(j);
-					}
-					sentry.setTimestamp(timestamp);
+					sentry.setTimestamp(toTimestamp(depotReply.getTimestamp()));
 				}
 
 				Sentry.pushResponse response = Sentry.pushResponse.newBuilder().setStatus(depotReply.getStatus()).build();
@@ -203,4 +198,30 @@ public class SentryImpl extends sentryServiceGrpc.sentryServiceImplBase {
 		depotURI = record.getURI();
 	}
 
+	/**
+	 * @param timestamp replica --> version
+	 * @return Depot.vectorClock with the replicas of the timestamp
+	 */
+	private static Depot.vectorClock toClock(Map<Integer, Integer> timestamp) {
+		Depot.vectorClock.Builder builder = Depot.vectorClock.newBuilder();
+
+		for (Map.Entry<Integer, Integer> entry : timestamp.entrySet()) {
+			builder.addReplicas(entry.getKey()).addVersions(entry.getValue());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @param clock timestamp of a depot reply
+	 * @return Map<Integer, Integer> replica --> version
+	 */
+	private static Map<Integer, Integer> toTimestamp(Depot.vectorClock clock) {
+		Map<Integer, Integer> timestamp = new TreeMap<Integer, Integer>();
+
+		for (int i = 0; i < clock.getReplicasCount() && i < clock.getVersionsCount(); i++) {
+			timestamp.put(clock.getReplicas(i), clock.getVersions(i));
+		}
+		return timestamp;
+	}
+
 }
\ No newline at end of file